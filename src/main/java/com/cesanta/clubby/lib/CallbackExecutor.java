@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+/**
+ * Executor which runs user callbacks: {@link CmdListener} and {@link
+ * ClubbyListener} methods. See {@link CallbackExecutors} for the standard
+ * implementations.
+ *
+ * @see Clubby.Builder#callbackExecutor(CallbackExecutor)
+ */
+public interface CallbackExecutor {
+
+    /**
+     * Run the callback.
+     *
+     * @param dst
+     *      Destination address of the command the callback belongs to; null
+     *      for the {@link ClubbyListener} callbacks. Implementations may use
+     *      it to keep callbacks of the same destination ordered.
+     * @param task
+     *      The callback itself.
+     */
+    public void execute(String dst, Runnable task);
+
+}
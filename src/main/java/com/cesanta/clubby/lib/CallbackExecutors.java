@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Standard implementations of {@link CallbackExecutor}.
+ */
+public final class CallbackExecutors {
+
+    private static final CallbackExecutor INLINE = new CallbackExecutor() {
+        @Override
+        public void execute(String dst, Runnable task) {
+            task.run();
+        }
+    };
+
+    private CallbackExecutors() {}
+
+    /**
+     * Returns executor which runs callbacks right in the thread which has
+     * received the response (or has detected the timeout, etc). A slow
+     * callback delays all the responses received after it. This is the
+     * default.
+     */
+    public static CallbackExecutor inline() {
+        return INLINE;
+    }
+
+    /**
+     * Returns executor which runs callbacks on a fixed pool of threads;
+     * callbacks are not ordered in any way.
+     */
+    public static CallbackExecutor fixedPool(int nThreads) {
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                nThreads, new DaemonThreadFactory("clubby-callback")
+                );
+
+        return new CallbackExecutor() {
+            @Override
+            public void execute(String dst, Runnable task) {
+                executor.execute(task);
+            }
+        };
+    }
+
+    /**
+     * Returns executor which runs callbacks on the given number of threads,
+     * keeping callbacks of the same destination in order: each destination
+     * is served by a single thread. {@link ClubbyListener} callbacks are
+     * ordered as well.
+     */
+    public static CallbackExecutor orderedPerDestination(int nThreads) {
+        if (nThreads <= 0) {
+            throw new IllegalArgumentException("illegal number of threads: " + nThreads);
+        }
+
+        final ExecutorService[] executors = new ExecutorService[nThreads];
+        DaemonThreadFactory threadFactory =
+            new DaemonThreadFactory("clubby-callback");
+        for (int i = 0; i < nThreads; i++) {
+            executors[i] = Executors.newSingleThreadExecutor(threadFactory);
+        }
+
+        return new CallbackExecutor() {
+            @Override
+            public void execute(String dst, Runnable task) {
+                int idx = 0;
+                if (dst != null) {
+                    idx = (dst.hashCode() & Integer.MAX_VALUE) % executors.length;
+                }
+                executors[idx].execute(task);
+            }
+        };
+    }
+
+}
@@ -7,53 +7,201 @@ package com.cesanta.clubby.lib;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import com.neovisionaries.ws.client.WebSocket;
 import com.neovisionaries.ws.client.WebSocketAdapter;
 import com.neovisionaries.ws.client.WebSocketException;
+import com.neovisionaries.ws.client.WebSocketExtension;
 import com.neovisionaries.ws.client.WebSocketFactory;
 import com.neovisionaries.ws.client.WebSocketFrame;
+import com.neovisionaries.ws.client.WebSocketOpcode;
 import com.neovisionaries.ws.client.WebSocketState;
 
 public final class Clubby {
     private final String serverAddress;
     private final String id;
     private final String psk;
+    private final boolean sessionAuth;
     private final String backend;
 
-    private final ObjectMapper mapper;
+    /*
+     * JSON codec is always offered to the server as a fallback, and is used
+     * for the listeners of the raw data; the preferred codec is the one
+     * offered first (might be JSON as well). Outgoing frames are encoded with
+     * the codec agreed for the current connection.
+     */
+    private final FrameCodec jsonCodec = FrameCodec.createJson();
+    private final FrameCodec preferredCodec;
+    private volatile FrameCodec outCodec = jsonCodec;
+
+    private final ObjectMapper mapper = jsonCodec.getMapper();
+
+    /*
+     * Readers for the response types requested by the callers, so that
+     * Jackson doesn't have to look up the deserializer for each response
+     */
+    private final ConcurrentMap<Class<?>, ObjectReader> respReaders
+        = new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+    private final TimeoutWheel timeoutWheel;
+
+    final SendQueue sendQueue;
+
+    private final EnvelopeCache envelopeCache;
+
+    private final ConcurrencyLimiter limiter;
+
+    private final ResponseCache responseCache;
+
+    private final HedgeTracker hedgeTracker;
+
+    /* Calls in flight which can be joined by identical calls */
+    private final ConcurrentMap<CoalescedCall.Key, CoalescedCall<?>> coalescedCalls
+        = new ConcurrentHashMap<CoalescedCall.Key, CoalescedCall<?>>();
+
+    /*
+     * Compressor of the outgoing frames, null if compression is disabled; it's
+     * used only if the server has agreed on the extension
+     */
+    private final FrameCompressor compressor;
+    private volatile boolean deflateAgreed = false;
+
+    /*
+     * Scheduler for the rare tasks: batch linger timers and reconnects
+     */
+    private final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("clubby-scheduler")
+                );
+
+    private final int respBatchSize;
+    private final long respBatchLinger;
+
+    /*
+     * Pool for the handlers of the incoming commands of all the identities;
+     * hedges are sent on it as well
+     */
+    private final Executor handlerPool;
+
+    /*
+     * Identity given to the builder, and the ones added later by
+     * addIdentity(), keyed by id
+     */
+    private final Identity defaultIdentity;
+    private final ConcurrentMap<String, Identity> identities
+        = new ConcurrentHashMap<String, Identity>();
+    private final int identityTableCapacity;
+
+    /*
+     * Number of pending commands of all the identities, shared by their
+     * tables, so that it's cheap to get (e.g. by ClubbyPool, on every call)
+     */
+    private final AtomicInteger pendingCnt = new AtomicInteger(0);
+
+    private volatile ClubbyState state = ClubbyState.NOT_CONNECTED;
+
+    private final CallbackExecutor callbackExecutor;
+    private final ListenerManager listenerMan;
 
-    private final ScheduledExecutorService executor
-      = Executors.newScheduledThreadPool(1);;
+    private volatile ClubbyOptions defaultOpts = null;
 
-    private ClubbyState state = ClubbyState.NOT_CONNECTED;
+    private final WebSocketFactory wsFactory = new WebSocketFactory();
+    private volatile WebSocket ws;
 
-    private final ListenerManager listenerMan = new ListenerManager(this);
-    private final CmdListenerManager cmdListenerMan = new CmdListenerManager();
+    private final boolean reconnect;
+    private final long reconnectMinDelay;
+    private final long reconnectMaxDelay;
 
-    private ClubbyOptions defaultOpts = null;
+    /*
+     * Whether the user wants Clubby to be connected: set by connect(),
+     * cleared by disconnect()
+     */
+    private volatile boolean connectRequested = false;
+
+    /* Set by close(), for good */
+    private volatile boolean closed = false;
+
+    /*
+     * Whether some commands should be sent again once reconnected, see
+     * {@link ClubbyOptions#resendOnReconnect(boolean)}
+     */
+    private volatile boolean resendNeeded = false;
 
-    private WebSocket ws;
+    /* Fields below are guarded by the reconnect lock */
+    private final Object reconnectLock = new Object();
+    private int reconnectAttempt = 0;
+    private ScheduledFuture<?> reconnectFuture = null;
 
-    /* TODO(dfrank): probably initial value should be random? */
-    private int cmdId = 0;
+    /*
+     * Last allocated command id; starts from a random value, so that ids of
+     * a restarted client don't collide with the ones of its previous run
+     */
+    private final AtomicInteger cmdId =
+        new AtomicInteger(new Random().nextInt(Integer.MAX_VALUE));
 
     private Clubby(Builder builder) throws IOException {
         id = builder.id;
         psk = builder.psk;
-        defaultOpts = builder.opts;
+        sessionAuth = builder.sessionAuth;
+        compressor = builder.compressionLevel != null
+            ? new FrameCompressor(builder.compressionLevel)
+            : null;
+        defaultOpts = ClubbyOptions.createFrom(builder.opts);
+        callbackExecutor = builder.callbackExecutor;
+        listenerMan = new ListenerManager(this, callbackExecutor);
+        limiter = new ConcurrencyLimiter(callbackExecutor);
+        respBatchSize = builder.respBatchSize;
+        respBatchLinger = builder.respBatchLinger;
+        handlerPool = CmdHandlerManager.createPool(
+                builder.handlerThreads, builder.handlerQueueCapacity
+                );
+        // With the session auth, the connection is authenticated already
+        defaultIdentity = new Identity(
+                id, sessionAuth ? null : psk, builder.pendingTableCapacity
+                );
+        identityTableCapacity = builder.identityTableCapacity;
+        envelopeCache = new EnvelopeCache(builder.envelopeCacheSize);
+        responseCache = new ResponseCache(builder.responseCacheSize);
+        hedgeTracker = new HedgeTracker(builder.hedgeStatsSize);
+        timeoutWheel = new TimeoutWheel(
+                builder.timeoutTickMillis, builder.timeoutWheelSize
+                );
+        sendQueue = new SendQueue(
+                builder.sendQueueCapacity, builder.sendQueuePolicy, sendQueueSink
+                );
+        reconnect = builder.reconnect;
+        reconnectMinDelay = builder.reconnectMinDelay;
+        reconnectMaxDelay = builder.reconnectMaxDelay;
 
         // Init backend address
         if (builder.backend != null) {
@@ -84,21 +232,119 @@ public final class Clubby {
             serverAddress = "wss:" + backend + ":443";
         }
 
-        mapper = new ObjectMapper()
-            .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+        preferredCodec = builder.codec != null ? builder.codec : jsonCodec;
+
+        ws = createSocket();
+    }
+
+    /**
+     * Creates a new websocket; a websocket can only be connected once, so a
+     * new one is needed for each connection.
+     */
+    private WebSocket createSocket() throws IOException {
+        WebSocket ret = wsFactory.createSocket(serverAddress);
+        ret.addProtocol("clubby.cesanta.com");
+        if (preferredCodec != jsonCodec) {
+            ret.addExtension(preferredCodec.getExtensionOffer());
+        }
+        ret.addExtension(jsonCodec.getExtensionOffer());
+        if (compressor != null) {
+            ret.addExtension(FrameCompressor.EXTENSION);
+        }
+        if (sessionAuth) {
+            // Authenticate the whole connection, instead of each frame
+            String credentials = id + ":" + psk;
+            ret.addHeader("Authorization", "Basic " + Base64.getEncoder()
+                    .encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+        }
+        ret.addListener(wsListener);
+        return ret;
+    }
+
+    private static boolean isAgreed(WebSocket websocket, String extension) {
+        List<WebSocketExtension> agreed = websocket.getAgreedExtensions();
+        if (agreed != null) {
+            for (WebSocketExtension ext : agreed) {
+                if (extension.equals(ext.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Identity on behalf of which frames are sent and received: the one given
+     * to the builder, or one added by {@link Clubby#addIdentity(String,
+     * String) addIdentity()}. Each identity has its own table of pending
+     * commands, handlers of the incoming commands, and batches (frames of
+     * different identities can't be merged).
+     */
+    final class Identity {
+        final String id;
+
+        /* Key sent in the frames; null if the connection is authenticated */
+        final String key;
+
+        final CmdListenerManager cmdListenerMan;
+        final CmdHandlerManager handlerMan;
+
+        final FrameBatcher<JsonCmd> batcher = new FrameBatcher<JsonCmd>(
+                new FrameBatcher.Sender<JsonCmd>() {
+                    @Override
+                    public void send(String dst, List<JsonCmd> cmds) {
+                        sendFrame(JsonFrame.createFrameCmds(Identity.this, dst, cmds));
+                    }
+                },
+                scheduler);
+
+        /* Batcher of the responses to the incoming commands */
+        final FrameBatcher<JsonResp> respBatcher = new FrameBatcher<JsonResp>(
+                new FrameBatcher.Sender<JsonResp>() {
+                    @Override
+                    public void send(String dst, List<JsonResp> resps) {
+                        sendFrame(JsonFrame.createFrameResps(Identity.this, dst, resps));
+                    }
+                },
+                scheduler);
 
-        WebSocketFactory factory = new WebSocketFactory();
+        Identity(String id, String key, int pendingTableCapacity) {
+            this.id = id;
+            this.key = key;
+            this.cmdListenerMan =
+                new CmdListenerManager(pendingTableCapacity, pendingCnt);
+            this.handlerMan = new CmdHandlerManager(
+                    mapper,
+                    handlerPool,
+                    new CmdHandlerManager.RespSender() {
+                        @Override
+                        public void send(String dst, JsonResp resp) {
+                            sendResp(dst, resp);
+                        }
+                    });
+        }
 
-        ws = factory.createSocket(serverAddress);
-        ws.addProtocol("clubby.cesanta.com");
-        ws.addExtension("clubby.cesanta.com-encoding; in=json; out=json");
-        ws.addListener(wsListener);
+        /**
+         * Sends the response to the incoming command, either right away or
+         * by means of the batcher.
+         */
+        private void sendResp(String dst, JsonResp jsonResp) {
+            if (respBatchSize > 1) {
+                respBatcher.add(dst, jsonResp, respBatchSize, respBatchLinger);
+            } else {
+                sendFrame(JsonFrame.createFrameResp(this, dst, jsonResp));
+            }
+        }
     }
 
     /**
      * A JSON frame
      */
+    /*
+     * Note: `cmds` should stay after the envelope fields, see EnvelopeCache
+     */
     @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonPropertyOrder({ "v", "src", "dst", "key", "cmds", "resp" })
     static class JsonFrame {
         public int v = 1;
         public String src = "";
@@ -113,43 +359,65 @@ public final class Clubby {
         @JsonInclude(JsonInclude.Include.NON_NULL)
         public List<JsonResp> resp = null;
 
+        /* Identity which sends the frame */
+        @JsonIgnore
+        Identity identity = null;
+
         /*
          * Note: default constructor is needed for JSON deserialization
          */
         JsonFrame() {
         }
 
-        JsonFrame(Clubby clubby, String dst) {
-            this.src = clubby.id;
+        JsonFrame(Identity identity, String dst) {
+            this.src = identity.id;
             this.dst = dst;
-            this.key = clubby.psk;
+            this.key = identity.key;
+            this.identity = identity;
         }
 
         static JsonFrame createFrameCmd(
-                Clubby clubby, String dst, JsonCmd jsonCmd
+                Identity identity, String dst, JsonCmd jsonCmd
                 ) {
-            JsonFrame frame = new JsonFrame(clubby, dst);
+            JsonFrame frame = new JsonFrame(identity, dst);
             frame.cmds = new ArrayList<JsonCmd>();
             frame.cmds.add(jsonCmd);
             return frame;
         }
 
-        /*
-         * Note: not used yet, but might be used in the future, when Clubby
-         * lib will support incoming commands
-         */
+        static JsonFrame createFrameCmds(
+                Identity identity, String dst, List<JsonCmd> jsonCmds
+                ) {
+            JsonFrame frame = new JsonFrame(identity, dst);
+            frame.cmds = jsonCmds;
+            return frame;
+        }
+
         static JsonFrame createFrameResp(
-                Clubby clubby, String dst, JsonResp jsonResp
+                Identity identity, String dst, JsonResp jsonResp
                 ) {
-            JsonFrame frame = new JsonFrame(clubby, dst);
+            JsonFrame frame = new JsonFrame(identity, dst);
             frame.resp = new ArrayList<JsonResp>();
             frame.resp.add(jsonResp);
             return frame;
         }
+
+        static JsonFrame createFrameResps(
+                Identity identity, String dst, List<JsonResp> jsonResps
+                ) {
+            JsonFrame frame = new JsonFrame(identity, dst);
+            frame.resp = jsonResps;
+            return frame;
+        }
     }
 
     /**
      * Single JSON command.
+     *
+     * The time left is computed when the command is serialized, so that the
+     * time spent waiting for the room in flight, in the batch or in the send
+     * queue is taken into account. It's sent twice: in milliseconds, and in
+     * seconds (rounded up) for the peers which don't know `timeout_ms`.
      */
     static class JsonCmd {
         public String cmd = "";
@@ -158,36 +426,94 @@ public final class Clubby {
         @JsonInclude(JsonInclude.Include.NON_EMPTY)
         public Object args = null;
 
-        @JsonInclude(JsonInclude.Include.NON_NULL)
-        public Integer timeout = null;
+        /* Deadline as per System.nanoTime(), if hasDeadline is true */
+        private long deadline = 0;
+        private boolean hasDeadline = false;
 
-        JsonCmd(String cmd, int id, Object args, int timeout) {
+        /* Whether the command has been written to the current connection */
+        private volatile boolean written = false;
+
+        JsonCmd(String cmd, int id, Object args) {
             this.cmd = cmd;
             this.id = id;
             this.args = args;
-            if (timeout != 0) {
-                this.timeout = timeout;
+        }
+
+        JsonCmd(String cmd, int id) {
+            this(cmd, id, null);
+        }
+
+        /**
+         * Sets the budget of the command, in milliseconds from now; negative
+         * means no deadline.
+         */
+        void setBudget(long budgetMillis) {
+            if (budgetMillis >= 0) {
+                deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+                hasDeadline = true;
             }
         }
 
-        JsonCmd(String cmd, int id, int timeout) {
-            this(cmd, id, null, timeout);
+        /**
+         * Returns the deadline as per System.nanoTime(); only makes sense if
+         * {@link #hasDeadline()}.
+         */
+        long getDeadline() {
+            return deadline;
+        }
+
+        boolean hasDeadline() {
+            return hasDeadline;
+        }
+
+        boolean isWritten() {
+            return written;
+        }
+
+        void setWritten(boolean written) {
+            this.written = written;
+        }
+
+        /**
+         * Returns whether the deadline has passed, so that there is no point
+         * in sending the command.
+         */
+        boolean isExpired() {
+            return hasDeadline && deadline - System.nanoTime() <= 0;
+        }
+
+        @JsonProperty("timeout")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Long getTimeout() {
+            Long millis = getTimeoutMillis();
+            return millis != null ? (millis + 999) / 1000 : null;
+        }
+
+        @JsonProperty("timeout_ms")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Long getTimeoutMillis() {
+            if (!hasDeadline) {
+                return null;
+            }
+            long left = TimeUnit.NANOSECONDS.toMillis(
+                    deadline - System.nanoTime() + 999999
+                    );
+            // 0 would mean no timeout at all
+            return Math.max(1, left);
         }
     }
 
-    /*
-     * TODO(dfrank) : probably add @JsonIgnoreProperties(ignoreUnknown = true)
-     * here, just in order to keep the code working if future Clubby backend
-     * will provide more fields
-     */
     /**
-     * Single JSON response.
+     * Single JSON response to the incoming command; incoming responses are
+     * parsed by {@link FrameDecoder}.
      */
     static class JsonResp {
         public int id = 0;
         public int status = 0;
         public String status_msg = "";
 
+        /* Whatever the command handler has returned */
         @JsonInclude(JsonInclude.Include.NON_NULL)
         public Object resp = null;
     }
@@ -212,9 +538,28 @@ public final class Clubby {
      * ClubbyListener.onConnected()} is called. If the connection fails,
      * {@link ClubbyListener#onConnectError(Clubby, WebSocketException)
      * ClubbyListener.onConnectError()} is called.
+     *
+     * @throws ClubbyException - Failed to create a socket.
+     * @throws IllegalStateException - Clubby is closed.
      */
     public void connect() {
-        ws.connectAsynchronously();
+        if (closed) {
+            throw new IllegalStateException("Clubby is closed");
+        }
+        connectRequested = true;
+        timeoutWheel.setKeepAlive(true);
+
+        WebSocket cur = ws;
+        if (cur.getState() != WebSocketState.CREATED) {
+            // The socket was used already, so create a new one
+            try {
+                cur = createSocket();
+            } catch (IOException e) {
+                throw new ClubbyException("Failed to create a socket", e);
+            }
+            ws = cur;
+        }
+        cur.connectAsynchronously();
     }
 
     /**
@@ -227,12 +572,169 @@ public final class Clubby {
     /**
      * Disconnect from the server asynchronously; when the socket is
      * disconnected, {@link ClubbyListener#onDisconnected(Clubby)
-     * ClubbyListener.onDisconnected()} is called.
+     * ClubbyListener.onDisconnected()} is called. Cancels automatic
+     * reconnect, if any.
      */
     public void disconnect() {
+        connectRequested = false;
+        // Let the timeout thread go when the pending commands are done
+        timeoutWheel.setKeepAlive(false);
+
+        boolean reconnectCancelled = false;
+        synchronized (reconnectLock) {
+            if (reconnectFuture != null) {
+                reconnectCancelled = reconnectFuture.cancel(false);
+                reconnectFuture = null;
+            }
+        }
+
+        if (reconnectCancelled) {
+            // We were waiting to reconnect, so no disconnection event is
+            // going to come: give up on whatever waits for the connection
+            onConnectionLost();
+        }
+
         ws.disconnect();
     }
 
+    /**
+     * Disconnect from the server, see {@link #disconnect()}, and stop the
+     * threads of Clubby: the timeout one and the scheduler. Commands which
+     * are still pending fail once the socket is disconnected, but their
+     * timeouts no longer fire. Clubby can't be connected again after that.
+     */
+    public void close() {
+        closed = true;
+        disconnect();
+        timeoutWheel.stop();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Returns whether the connection is going to be re-established
+     * automatically.
+     */
+    private boolean willReconnect() {
+        return reconnect && connectRequested;
+    }
+
+    /**
+     * Schedules the reconnect attempt, with exponential backoff and random
+     * jitter: the delay is picked between a half and a whole of the current
+     * backoff value.
+     */
+    private void scheduleReconnect() {
+        synchronized (reconnectLock) {
+            if (reconnectFuture != null) {
+                return;
+            }
+
+            long backoff = reconnectMaxDelay;
+            if (reconnectAttempt < 30) {
+                backoff = Math.min(
+                        reconnectMinDelay << reconnectAttempt,
+                        reconnectMaxDelay
+                        );
+            }
+            reconnectAttempt++;
+
+            long delay = backoff / 2
+                + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+
+            reconnectFuture = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (reconnectLock) {
+                        reconnectFuture = null;
+                    }
+                    reconnectNow();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void reconnectNow() {
+        if (!willReconnect()) {
+            return;
+        }
+
+        try {
+            WebSocket newWs = createSocket();
+            ws = newWs;
+            newWs.connectAsynchronously();
+        } catch (IOException e) {
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Called when the connection is lost (or the connection attempt has
+     * failed). Commands which were sent fail with {@link
+     * ClubbyStatus#CONNECTION_LOST}, except the ones which are going to be
+     * sent again after reconnect; if there is no reconnect coming, queued
+     * frames are dropped as well.
+     */
+    private void onConnectionLost() {
+        boolean willReconnect = willReconnect();
+
+        for (Identity identity : getIdentities()) {
+            CmdListenerManager cmdListenerMan = identity.cmdListenerMan;
+            for (CmdListenerWrapper<?> listenerWrapper : cmdListenerMan.getPending()) {
+                if (willReconnect && listenerWrapper.isResendable()) {
+                    if (listenerWrapper.onConnectionLost()) {
+                        resendNeeded = true;
+                    }
+                    continue;
+                }
+                if (cmdListenerMan.popListener(listenerWrapper.getCmdId()) != null) {
+                    dispatchError(
+                            listenerWrapper,
+                            ClubbyStatus.CONNECTION_LOST,
+                            "Connection lost"
+                            );
+                }
+            }
+        }
+
+        if (willReconnect) {
+            scheduleReconnect();
+        } else {
+            sendQueue.dropAll(ClubbyStatus.NOT_CONNECTED, "Clubby is not connected");
+        }
+    }
+
+    /**
+     * Sends again commands which had been written to the connection which is
+     * lost; the ones which haven't been written yet are still in the send
+     * queue or in the batch.
+     */
+    private void resendPending() {
+        for (Identity identity : getIdentities()) {
+            for (CmdListenerWrapper<?> listenerWrapper
+                    : identity.cmdListenerMan.getPending()) {
+                // Expired ones are about to time out anyway
+                if (listenerWrapper.takeResendDue()
+                        && !listenerWrapper.getResendCmd().isExpired()) {
+                    sendFrame(JsonFrame.createFrameCmd(
+                                identity,
+                                listenerWrapper.getDst(),
+                                listenerWrapper.getResendCmd()
+                                ));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the default identity followed by the added ones.
+     */
+    private List<Identity> getIdentities() {
+        List<Identity> ret = new ArrayList<Identity>(identities.size() + 1);
+        ret.add(defaultIdentity);
+        ret.addAll(identities.values());
+        return ret;
+    }
+
     /**
      * Clubby object builder.
      *
@@ -250,6 +752,26 @@ public final class Clubby {
         private String id = "";
         private String psk = "";
         private ClubbyOptions opts = ClubbyOptions.createDefault();
+        private long timeoutTickMillis = 10;
+        private int timeoutWheelSize = 512;
+        private int sendQueueCapacity = 1024;
+        private SendQueuePolicy sendQueuePolicy = SendQueuePolicy.FAIL_FAST;
+        private boolean reconnect = false;
+        private long reconnectMinDelay = 500;
+        private long reconnectMaxDelay = 30000;
+        private CallbackExecutor callbackExecutor = CallbackExecutors.inline();
+        private int pendingTableCapacity = 4096;
+        private int envelopeCacheSize = 512;
+        private int responseCacheSize = 1024;
+        private int hedgeStatsSize = 1024;
+        private boolean sessionAuth = false;
+        private Integer compressionLevel = null;
+        private FrameCodec codec = null;
+        private int handlerThreads = Runtime.getRuntime().availableProcessors();
+        private int handlerQueueCapacity = 1024;
+        private int respBatchSize = 32;
+        private long respBatchLinger = 0;
+        private int identityTableCapacity = 64;
 
         public Builder() {
         }
@@ -292,6 +814,48 @@ public final class Clubby {
             return this;
         }
 
+        /**
+         * Set whether to authenticate once per connection: the id and the
+         * pre-shared key are sent in the `Authorization` header of the
+         * websocket handshake, and frames are sent without `key`. Older
+         * backends only support the per-frame key, so it's off by default.
+         */
+        public Builder sessionAuth(boolean sessionAuth) {
+            this.sessionAuth = sessionAuth;
+            return this;
+        }
+
+        /**
+         * Enable `permessage-deflate` compression of the outgoing frames with
+         * the default deflate level, or disable it; see {@link
+         * #compression(int) compression(int)}. Default: false.
+         */
+        public Builder compression(boolean compression) {
+            this.compressionLevel = compression ? Deflater.DEFAULT_COMPRESSION : null;
+            return this;
+        }
+
+        /**
+         * Enable `permessage-deflate` compression of the outgoing frames, if
+         * the server agrees on it. Incoming compressed frames are inflated by
+         * the websocket.
+         *
+         * Every outgoing payload is compressed, even a tiny one, or one which
+         * doesn't get any smaller: the websocket compresses every frame which
+         * isn't marked as compressed on its own, with the default level, so
+         * there's no way to send a frame uncompressed once the extension is
+         * agreed. That's why there is no min size threshold.
+         *
+         * @param level
+         *      Deflate level, 0-9, or -1 for the default one.
+         *
+         * @see Clubby#getBytesBeforeCompression()
+         */
+        public Builder compression(int level) {
+            this.compressionLevel = level;
+            return this;
+        }
+
         /**
          * Set default number of seconds after when the command result is no
          * longer relevant (and the {@link CmdListener#onError(int, String)
@@ -304,86 +868,535 @@ public final class Clubby {
         }
 
         /**
-         * Build an instance of Clubby client from the current builder
-         * instance.
-         *
-         * @throws IOException - Failed to create a socket. Or, HTTP proxy
-         *         handshake or SSL handshake failed.
+         * The same as {@link #timeout(int) timeout()}, in milliseconds; the
+         * command times out within one tick after that, see {@link
+         * #timeoutTick(long) timeoutTick()}. Default: 0.
          */
-        public Clubby build() throws IOException {
-            return new Clubby(this);
+        public Builder timeoutMillis(long millis) {
+            opts.timeoutMillis(millis);
+            return this;
         }
-    }
 
-    void sendText(String text) {
-        if (isConnected()) {
-            /* TODO(dfrank): remove this debug print */
-            //System.out.println("sending text data: " + text);
-            ws.sendText(text);
-        } else {
-            throw new IllegalStateException("Clubby is not connected");
+        /**
+         * Set resolution of the command timeouts, in milliseconds: timeouts
+         * are checked once per tick, so a command might time out up to one
+         * tick later than requested. Default: 10.
+         */
+        public Builder timeoutTick(long tickMillis) {
+            this.timeoutTickMillis = tickMillis;
+            return this;
         }
-    }
 
-    WebSocketAdapter wsListener = new WebSocketAdapter() {
-
-        @Override
-        public void onTextMessage(WebSocket websocket, final String text) throws Exception {
-            /* TODO(dfrank): remove this debug print */
-            //System.out.println("New message from server: " + text);
-
-            listenerMan.onDataReceived(text);
-
-            JsonFrame jsonFrameResp = mapper.readValue(text, JsonFrame.class);
-            for (JsonResp resp : jsonFrameResp.resp) {
-
-                CmdListenerWrapper<?> listenerWrapper = cmdListenerMan.popListener(resp.id);
+        /**
+         * Set number of buckets of the timeout wheel; timeouts which are
+         * further than `size * tick` in the future are checked on each turn of
+         * the wheel until they expire, so the wheel should cover the common
+         * timeout values. Default: 512.
+         */
+        public Builder timeoutWheelSize(int size) {
+            this.timeoutWheelSize = size;
+            return this;
+        }
 
-                if (listenerWrapper != null) {
-                    if (resp.status == 0) {
-                        /* Status is OK, so, handle the response */
-                        listenerWrapper.onResponseGeneric(
-                                mapper,
-                                mapper.writeValueAsString(resp.resp)
-                                );
-                    } else {
-                        /* Command has failed */
-                        listenerWrapper.onError(
-                                resp.status,
-                                resp.status_msg
-                                );
-                    }
-                }
-            }
+        /**
+         * Set max number of frames which can wait in the send queue: frames
+         * are queued while Clubby is connecting, and sent once the
+         * connection is established. Default: 1024.
+         */
+        public Builder sendQueueCapacity(int capacity) {
+            this.sendQueueCapacity = capacity;
+            return this;
         }
 
-        @Override
-        public void onConnected(WebSocket websocket, Map<String, List<String>> headers) throws Exception {
-            listenerMan.onConnected();
+        /**
+         * Set what to do when the send queue is full, see {@link
+         * SendQueuePolicy}. Default: {@link SendQueuePolicy#FAIL_FAST
+         * FAIL_FAST}.
+         */
+        public Builder sendQueuePolicy(SendQueuePolicy policy) {
+            this.sendQueuePolicy = policy;
+            return this;
         }
 
-        @Override
-        public void onDisconnected(
-                WebSocket websocket,
-                WebSocketFrame serverCloseFrame,
-                WebSocketFrame clientCloseFrame,
-                boolean closedByServer
-                ) throws Exception {
-            listenerMan.onDisconnected();
+        /**
+         * Set whether Clubby should reconnect automatically when the
+         * connection is lost or can't be established, until {@link
+         * Clubby#disconnect() disconnect()} is called. While reconnecting,
+         * outgoing frames are queued. Default: false.
+         *
+         * @see ClubbyOptions#resendOnReconnect(boolean)
+         */
+        public Builder reconnect(boolean reconnect) {
+            this.reconnect = reconnect;
+            return this;
         }
 
-        @Override
-        public void onError(WebSocket websocket, WebSocketException cause) throws Exception {
-            listenerMan.onError(cause);
+        /**
+         * Set the range of delays between reconnect attempts, in milliseconds:
+         * the delay starts with `minDelay` and doubles with each failed
+         * attempt, up to `maxDelay`; the actual delay is randomized between a
+         * half and a whole of that value. Default: 500 and 30000.
+         */
+        public Builder reconnectBackoff(long minDelay, long maxDelay) {
+            this.reconnectMinDelay = minDelay;
+            this.reconnectMaxDelay = maxDelay;
+            return this;
         }
 
-        @Override
-        public void onConnectError(WebSocket websocket, WebSocketException cause) throws Exception {
+        /**
+         * Set executor for the user callbacks: {@link CmdListener} and {@link
+         * ClubbyListener} methods. Decoding of the response into the response
+         * type is done by the executor as well, so that the thread reading
+         * the websocket only has to find the listener of the response. See
+         * {@link CallbackExecutors} for the standard executors. Default:
+         * {@link CallbackExecutors#inline()}.
+         */
+        public Builder callbackExecutor(CallbackExecutor executor) {
+            this.callbackExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Set number of slots in the table of pending commands; when more
+         * commands are pending, the extra ones are kept in a slower map. Set
+         * it to the expected number of concurrent calls. Default: 4096.
+         */
+        public Builder pendingTableCapacity(int capacity) {
+            this.pendingTableCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Set number of slots in the table of pending commands of each
+         * identity added by {@link Clubby#addIdentity(String, String)
+         * addIdentity()}; see {@link #pendingTableCapacity(int)
+         * pendingTableCapacity()}. It's smaller than the one of the main
+         * identity, since there might be thousands of identities. Default:
+         * 64.
+         */
+        public Builder identityTableCapacity(int capacity) {
+            this.identityTableCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Set number of destinations to keep pre-encoded frame envelopes
+         * for: the envelope (everything but the commands) of the frames to
+         * the recently used destinations is encoded only once (per
+         * identity). Set 0 to
+         * encode each frame as a whole. Default: 512.
+         */
+        public Builder envelopeCacheSize(int size) {
+            this.envelopeCacheSize = size;
+            return this;
+        }
+
+        /**
+         * Set max number of responses kept in the response cache; the least
+         * recently used ones are evicted. See {@link
+         * ClubbyOptions#cacheTtl(long) ClubbyOptions.cacheTtl()}. Default:
+         * 1024.
+         */
+        public Builder responseCacheSize(int size) {
+            this.responseCacheSize = size;
+            return this;
+        }
+
+        /**
+         * Set max number of destinations to keep latency statistics for, see
+         * {@link ClubbyOptions#hedgePercentile(double)
+         * ClubbyOptions.hedgePercentile()}; the least recently used ones are
+         * dropped. Default: 1024.
+         */
+        public Builder hedgeStatsSize(int size) {
+            this.hedgeStatsSize = size;
+            return this;
+        }
+
+        /**
+         * Set the pool which runs handlers of the incoming commands, see
+         * {@link Clubby#registerHandler(String, CmdHandler, Class)
+         * registerHandler()}: at most `threads` handlers run concurrently,
+         * and at most `queueCapacity` commands wait for a thread; commands
+         * beyond that are refused with status 503. Hedges (see {@link
+         * ClubbyOptions#hedgePercentile(double)}) are sent on the same pool.
+         * Threads are started on demand. Default: number of processors, and
+         * 1024.
+         */
+        public Builder handlerPool(int threads, int queueCapacity) {
+            this.handlerThreads = threads;
+            this.handlerQueueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Set batching of the responses to the incoming commands: responses
+         * to the same destination which are ready within `lingerMicros` are
+         * sent in a single frame, up to `size` of them. Set size 1 to send
+         * each response right away. Default: 32 and 0 (i.e. responses which
+         * are ready at about the same time are batched).
+         */
+        public Builder responseBatch(int size, long lingerMicros) {
+            this.respBatchSize = size;
+            this.respBatchLinger = lingerMicros;
+            return this;
+        }
+
+        /**
+         * Set wire encoding to offer to the server: `name` is the encoding
+         * name used in the `clubby.cesanta.com-encoding` extension, and
+         * `factory` is the Jackson factory of the format. Encodings which are
+         * binary for Jackson are sent as binary websocket messages. If the
+         * server doesn't agree on the encoding, JSON is used. Default: JSON.
+         */
+        public Builder encoding(String name, JsonFactory factory) {
+            this.codec = new FrameCodec(name, factory);
+            return this;
+        }
+
+        /**
+         * Offer CBOR encoding to the server, see {@link #encoding(String,
+         * JsonFactory) encoding()}.
+         */
+        public Builder cborEncoding() {
+            return encoding("cbor", new CBORFactory());
+        }
+
+        /**
+         * Build an instance of Clubby client from the current builder
+         * instance.
+         *
+         * @throws IOException - Failed to create a socket. Or, HTTP proxy
+         *         handshake or SSL handshake failed.
+         */
+        public Clubby build() throws IOException {
+            return new Clubby(this);
+        }
+
+        /**
+         * Build a pool of Clubby clients from the current builder instance;
+         * see {@link ClubbyPool}.
+         *
+         * @param size
+         *      Number of connections in the pool.
+         *
+         * @throws IOException - Failed to create a socket. Or, HTTP proxy
+         *         handshake or SSL handshake failed.
+         */
+        public ClubbyPool buildPool(int size) throws IOException {
+            return new ClubbyPool(this, size);
+        }
+    }
+
+    /**
+     * Sends the frame if Clubby is connected, or queues it if it's
+     * connecting (or is going to reconnect). Otherwise, commands of the frame
+     * fail with {@link ClubbyStatus#NOT_CONNECTED}.
+     */
+    private void sendFrame(JsonFrame jsonFrame) {
+        int[] cmdIds;
+        if (jsonFrame.cmds != null) {
+            cmdIds = new int[jsonFrame.cmds.size()];
+            for (int i = 0; i < cmdIds.length; i++) {
+                cmdIds[i] = jsonFrame.cmds.get(i).id;
+            }
+        } else {
+            cmdIds = new int[0];
+        }
+
+        // The frame is encoded when it's actually sent, since the encoding
+        // depends on the connection
+        SendQueue.Frame frame = new SendQueue.Frame(jsonFrame, cmdIds);
+        ClubbyState curState = state;
+
+        if (curState == ClubbyState.CONNECTED && sendQueue.sendNow(frame)) {
+            return;
+        }
+
+        if (curState == ClubbyState.CONNECTED
+                || curState == ClubbyState.CONNECTING
+                || willReconnect()) {
+            sendQueue.add(frame);
+            // The connection might have been established while the frame
+            // was being added
+            if (state == ClubbyState.CONNECTED) {
+                sendQueue.drain();
+            }
+        } else {
+            failCmds(
+                    jsonFrame.identity,
+                    cmdIds,
+                    ClubbyStatus.NOT_CONNECTED,
+                    "Clubby is not connected"
+                    );
+        }
+    }
+
+    /**
+     * Returns number of frames waiting in the send queue.
+     */
+    public int getSendQueueDepth() {
+        return sendQueue.size();
+    }
+
+    private final SendQueue.Sink sendQueueSink = new SendQueue.Sink() {
+        @Override
+        public boolean send(SendQueue.Frame frame) {
+            if (!isConnected()) {
+                return false;
+            }
+
+            //-- encode it with the codec agreed for the connection
+            FrameCodec codec = outCodec;
+            byte[] payload = null;
+            try {
+                payload = envelopeCache.encode(codec, frame.jsonFrame);
+            } catch (JsonProcessingException e) {
+                // Most likely, the arguments can't be serialized; the frame
+                // is consumed, but nothing is sent
+                failCmds(
+                        frame.jsonFrame.identity,
+                        frame.cmdIds,
+                        ClubbyStatus.ENCODING_FAILED,
+                        "Failed to encode the frame: " + e.getMessage()
+                        );
+                return true;
+            }
+
+            WebSocketFrame wsFrame = new WebSocketFrame()
+                .setFin(true)
+                .setOpcode(codec.isBinary()
+                        ? WebSocketOpcode.BINARY : WebSocketOpcode.TEXT);
+
+            //-- compress it; RSV1 marks the compressed message, and tells
+            //   the websocket not to compress it once again
+            if (deflateAgreed) {
+                payload = compressor.compress(payload);
+                wsFrame.setRsv1(true);
+            }
+
+            //-- send pre-encoded payload, so that the websocket doesn't have
+            //   to encode it once again
+            ws.sendFrame(wsFrame.setPayload(payload));
+
+            // Only commands which are written are resent after reconnect
+            List<JsonCmd> cmds = frame.jsonFrame.cmds;
+            if (cmds != null) {
+                for (int i = 0; i < cmds.size(); i++) {
+                    cmds.get(i).setWritten(true);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void drop(SendQueue.Frame frame, int status, String statusMsg) {
+            failCmds(frame.jsonFrame.identity, frame.cmdIds, status, statusMsg);
+        }
+    };
+
+    /**
+     * Notifies the listener about the response, by means of the callback
+     * executor.
+     */
+    private void dispatchResponse(
+            final CmdListenerWrapper<?> listenerWrapper,
+            final TokenBuffer resp
+            ) {
+        listenerWrapper.releasePermit(0);
+        callbackExecutor.execute(listenerWrapper.getDst(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listenerWrapper.onResponseGeneric(resp);
+                } catch (Throwable t) {
+                    listenerMan.handleCallbackError(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Notifies the listener about the failure, by means of the callback
+     * executor.
+     */
+    private void dispatchError(
+            final CmdListenerWrapper<?> listenerWrapper,
+            final int status,
+            final String statusMsg
+            ) {
+        listenerWrapper.releasePermit(status);
+        if (listenerWrapper.getCacheKey() != null) {
+            // Let the next call refresh the stale response
+            responseCache.refreshFailed(listenerWrapper.getCacheKey());
+        }
+        callbackExecutor.execute(listenerWrapper.getDst(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listenerWrapper.onError(status, statusMsg);
+                } catch (Throwable t) {
+                    listenerMan.handleCallbackError(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Notifies listeners of the given commands of the identity (if they are
+     * still pending) about the failure.
+     */
+    private void failCmds(
+            Identity identity,
+            int[] cmdIds,
+            int status,
+            String statusMsg
+            ) {
+        for (int cmdId : cmdIds) {
+            CmdListenerWrapper<?> listenerWrapper =
+                identity.cmdListenerMan.popListener(cmdId);
+            if (listenerWrapper != null) {
+                dispatchError(listenerWrapper, status, statusMsg);
+            }
+        }
+    }
+
+    /**
+     * Returns identity the incoming frame is addressed to: the one with the
+     * id equal to `dst`, or the default one.
+     */
+    private Identity routeFrame(String dst) {
+        if (!identities.isEmpty()) {
+            Identity identity = identities.get(dst);
+            if (identity != null) {
+                return identity;
+            }
+        }
+        return defaultIdentity;
+    }
+
+    /**
+     * Dispatches responses to their listeners, as the responses are parsed
+     * from the incoming frame; frames are routed to the identities by `dst`.
+     */
+    private final FrameDecoder.Handler frameHandler = new FrameDecoder.Handler() {
+        @Override
+        public boolean isWanted(String dst, int id) {
+            return routeFrame(dst).cmdListenerMan.isPending(id);
+        }
+
+        @Override
+        public void onResp(
+                String dst,
+                int id,
+                int status,
+                String statusMsg,
+                TokenBuffer resp
+                ) {
+            CmdListenerWrapper<?> listenerWrapper =
+                routeFrame(dst).cmdListenerMan.popListener(id);
+
+            if (listenerWrapper != null) {
+                if (status == 0 && listenerWrapper.getCacheKey() != null) {
+                    responseCache.put(
+                            listenerWrapper.getCacheKey(),
+                            resp,
+                            listenerWrapper.getCacheTtl(),
+                            listenerWrapper.getCacheStale()
+                            );
+                }
+
+                if (status == 0) {
+                    /* Status is OK, so, handle the response */
+                    dispatchResponse(listenerWrapper, resp);
+                } else {
+                    /* Command has failed */
+                    dispatchError(listenerWrapper, status, statusMsg);
+                }
+            }
+        }
+
+        @Override
+        public void onCmds(String src, String dst, List<FrameDecoder.Cmd> cmds) {
+            CmdHandlerManager handlerMan = routeFrame(dst).handlerMan;
+            for (FrameDecoder.Cmd cmd : cmds) {
+                handlerMan.handle(src, cmd);
+            }
+        }
+    };
+
+    WebSocketAdapter wsListener = new WebSocketAdapter() {
+
+        @Override
+        public void onTextMessage(WebSocket websocket, final String text) throws Exception {
+            /* TODO(dfrank): remove this debug print */
+            //System.out.println("New message from server: " + text);
+
+            listenerMan.onDataReceived(text);
+
+            FrameDecoder.decode(jsonCodec.createParser(text), frameHandler);
+        }
+
+        @Override
+        public void onBinaryMessage(WebSocket websocket, byte[] binary) throws Exception {
+            if (!preferredCodec.isBinary()) {
+                // We haven't offered any binary encoding
+                return;
+            }
+
+            listenerMan.onDataReceived(preferredCodec, binary);
+
+            FrameDecoder.decode(preferredCodec.createParser(binary), frameHandler);
+        }
+
+        @Override
+        public void onConnected(WebSocket websocket, Map<String, List<String>> headers) throws Exception {
+            synchronized (reconnectLock) {
+                reconnectAttempt = 0;
+            }
+            sendQueue.drain();
+            if (resendNeeded) {
+                resendNeeded = false;
+                resendPending();
+            }
+            listenerMan.onConnected();
+        }
+
+        @Override
+        public void onDisconnected(
+                WebSocket websocket,
+                WebSocketFrame serverCloseFrame,
+                WebSocketFrame clientCloseFrame,
+                boolean closedByServer
+                ) throws Exception {
+            if (websocket != ws) {
+                // Event of a socket which was replaced already
+                return;
+            }
+            onConnectionLost();
+            listenerMan.onDisconnected();
+        }
+
+        @Override
+        public void onError(WebSocket websocket, WebSocketException cause) throws Exception {
+            listenerMan.onError(cause);
+        }
+
+        @Override
+        public void onConnectError(WebSocket websocket, WebSocketException cause) throws Exception {
+            if (websocket != ws) {
+                return;
+            }
+            onConnectionLost();
             listenerMan.onConnectError(cause);
         }
 
         @Override
         public void onStateChanged(WebSocket websocket, WebSocketState newState) {
+            if (websocket != ws) {
+                return;
+            }
+
             switch (newState) {
                 case CREATED:
                     Clubby.this.state = ClubbyState.NOT_CONNECTED;
@@ -395,6 +1408,15 @@ public final class Clubby {
                     Clubby.this.state = ClubbyState.CONNECTING;
                     break;
                 case OPEN:
+                    // Pick the encoding before anything is sent over the new
+                    // connection
+                    outCodec = FrameCodec.negotiate(
+                            websocket.getAgreedExtensions(),
+                            preferredCodec,
+                            jsonCodec
+                            );
+                    deflateAgreed = compressor != null
+                        && isAgreed(websocket, FrameCompressor.EXTENSION);
                     Clubby.this.state = ClubbyState.CONNECTED;
                     break;
                 case CLOSING:
@@ -407,7 +1429,11 @@ public final class Clubby {
 
         @Override
         public void onSendingFrame(WebSocket websocket, WebSocketFrame frame) throws Exception {
-            listenerMan.onDataSending(frame.getPayloadText());
+            listenerMan.onDataSending(
+                    frame.isBinaryFrame() ? outCodec : jsonCodec,
+                    frame.getPayload(),
+                    frame.getRsv1()
+                    );
         }
 
         @Override
@@ -417,8 +1443,32 @@ public final class Clubby {
 
     };
 
+    /**
+     * Returns a reader for the given response type; readers are created once
+     * per type and then reused.
+     */
+    private ObjectReader getRespReader(Class<?> respClass) {
+        ObjectReader reader = respReaders.get(respClass);
+        if (reader == null) {
+            reader = mapper.readerFor(respClass);
+            ObjectReader prev = respReaders.putIfAbsent(respClass, reader);
+            if (prev != null) {
+                reader = prev;
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * Returns next command id. Ids are positive: after Integer.MAX_VALUE, the
+     * sequence starts over from 1.
+     */
     private int getNextCmdId() {
-        return ++cmdId;
+        int id;
+        do {
+            id = cmdId.incrementAndGet() & Integer.MAX_VALUE;
+        } while (id == 0);
+        return id;
     }
 
     public void setDefaultOptions(ClubbyOptions opts) {
@@ -453,6 +1503,9 @@ public final class Clubby {
      *      there is a need to override defaults, use {@link
      *      Clubby#getOptions() getOptions()} to get current defaults, and then
      *      modify received options object in some way.
+     *
+     * This method is thread-safe: it can be called concurrently from any
+     * number of threads.
      */
     public <R> void call(
             String dst,
@@ -462,51 +1515,317 @@ public final class Clubby {
             Class<R> respClass,
             ClubbyOptions opts
             ) {
+        sendCmd(getIdentity(opts), dst, cmd, args, listener, respClass, opts);
+    }
+
+    /**
+     * Returns identity the command with the given options is sent on behalf
+     * of, see {@link ClubbyOptions#identity(String) ClubbyOptions.identity()}.
+     *
+     * @throws IllegalArgumentException - There is no such identity.
+     */
+    private Identity getIdentity(ClubbyOptions opts) {
+        String id = (opts != null ? opts : defaultOpts).getIdentity();
+        if (id == null) {
+            return defaultIdentity;
+        }
+        return getIdentity(id);
+    }
+
+    /**
+     * Implementation of {@link #call(String, String, Object, CmdListener,
+     * Class, ClubbyOptions) call()}; returns id of the sent command, or 0 if
+     * the response was taken from the cache.
+     */
+    private <R> int sendCmd(
+            Identity identity,
+            String dst,
+            String cmd,
+            Object args,
+            CmdListener<R> listener,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) {
+        if (opts == null) {
+            opts = defaultOpts;
+        }
+
+        // if the response is cached, don't even send the command
+        String cacheKey = null;
+        if (listener != null && opts.getCacheTtl() > 0) {
+            cacheKey = responseCache.getKey(identity.id, dst, cmd, args);
+            if (cacheKey != null) {
+                ResponseCache.Lookup lookup = responseCache.get(cacheKey);
+                if (lookup.result != ResponseCache.Result.MISS) {
+                    dispatchResponse(
+                            new CmdListenerWrapper<R>(
+                                listener, getRespReader(respClass), dst
+                                ),
+                            lookup.resp
+                            );
+                    if (lookup.result == ResponseCache.Result.STALE_REFRESH) {
+                        refreshCached(identity, dst, cmd, args, opts, cacheKey);
+                    }
+                    return 0;
+                }
+            }
+        }
+
+        return sendCmd(
+                identity, dst, cmd, args, listener, respClass, opts, cacheKey, true
+                );
+    }
+
+    /**
+     * Sends the command to refresh the stale cached response.
+     */
+    private void refreshCached(
+            Identity identity,
+            String dst,
+            String cmd,
+            Object args,
+            ClubbyOptions opts,
+            String cacheKey
+            ) {
+        CmdListener<Object> listener = new CmdListener<Object>() {
+            @Override
+            public void onResponse(Object response) {
+            }
+
+            @Override
+            public void onError(int status, String statusMsg) {
+            }
+        };
+        sendCmd(
+                identity, dst, cmd, args, listener, Object.class, opts, cacheKey, true
+                );
+    }
+
+    /**
+     * Sends the command, bypassing the response cache.
+     *
+     * @param cacheKey
+     *      Cache key of the call, if the response should be cached; null
+     *      otherwise.
+     * @param localTimeout
+     *      Whether the command should time out on its own; if not, the
+     *      timeout is only sent to the destination, and the caller takes care
+     *      of the deadline.
+     */
+    private <R> int sendCmd(
+            Identity identity,
+            String dst,
+            String cmd,
+            Object args,
+            CmdListener<R> listener,
+            Class<R> respClass,
+            ClubbyOptions opts,
+            String cacheKey,
+            boolean localTimeout
+            ) {
+
+        // if the same call is in flight already, just join it
+        CoalescedCall<R> coalescedCall = null;
+        if (listener != null && opts.getCoalesce()) {
+            CoalescedCall.Key key =
+                getCoalesceKey(identity.id, dst, cmd, args, respClass);
+            while (key != null) {
+                @SuppressWarnings("unchecked")
+                CoalescedCall<R> existing = (CoalescedCall<R>) coalescedCalls.get(key);
+                if (existing != null) {
+                    if (existing.join(listener)) {
+                        return existing.getCmdId();
+                    }
+                    // It's just being closed
+                    coalescedCalls.remove(key, existing);
+                    continue;
+                }
+
+                coalescedCall = new CoalescedCall<R>(coalescedCalls, key, listener);
+                if (coalescedCalls.putIfAbsent(key, coalescedCall) == null) {
+                    listener = coalescedCall;
+                    break;
+                }
+                coalescedCall = null;
+            }
+        }
+
+        // if the call might be hedged, let it pick the first answer
+        HedgedCall<R> hedgedCall = null;
+        if (listener != null && opts.getHedgePercentile() > 0) {
+            hedgedCall = new HedgedCall<R>(listener, dst, hedgeTracker);
+            listener = hedgedCall;
+        }
+
         // get next command id
         int cmdId = getNextCmdId();
 
+        JsonCmd jsonCmd = new JsonCmd(cmd, cmdId, args);
+        long now = System.currentTimeMillis();
+        long budget = opts.getBudgetMillis(now);
+        jsonCmd.setBudget(budget);
+
         // if listener is specified, take care of it
+        CmdListenerWrapper<R> listenerWrapper = null;
         if (listener != null) {
-            final CmdListenerWrapper<R> listenerWrapper =
-                new CmdListenerWrapper<R>(listener, respClass);
+            listenerWrapper =
+                new CmdListenerWrapper<R>(listener, getRespReader(respClass), dst);
+            if (cacheKey != null) {
+                listenerWrapper.setCache(
+                        cacheKey, opts.getCacheTtl(), opts.getCacheStale()
+                        );
+            }
 
+            // Add listener before the frame is sent, so that it's published
+            // before the response can arrive. If the id is still used by some
+            // ancient command (ids have wrapped around), just take the next one.
             listenerWrapper.setCmdId(cmdId);
-
-            if (opts == null) {
-                opts = defaultOpts;
+            while (!identity.cmdListenerMan.addCmdListener(listenerWrapper)) {
+                cmdId = getNextCmdId();
+                listenerWrapper.setCmdId(cmdId);
+                jsonCmd.id = cmdId;
             }
 
-            if (opts.getTimeout() != 0) {
-                Future<?> timeoutFuture = executor.schedule(
-                        new TimeoutHandler(cmdId),
-                        opts.getTimeout(),
-                        TimeUnit.SECONDS
+            if (budget >= 0 && localTimeout) {
+                TimeoutWheel.Timeout timeout = timeoutWheel.schedule(
+                        new TimeoutHandler(identity, cmdId),
+                        budget,
+                        TimeUnit.MILLISECONDS
                         );
 
-                listenerWrapper.setTimeoutFuture(timeoutFuture);
+                listenerWrapper.setTimeout(timeout);
             }
+        }
 
-            cmdListenerMan.addCmdListener(listenerWrapper);
+        if (coalescedCall != null) {
+            coalescedCall.setCmdId(cmdId);
         }
 
-        //-- prepare JSON frame
-        JsonFrame jsonFrame = JsonFrame.createFrameCmd(
-                this,
-                dst,
-                new JsonCmd(cmd, cmdId, args, opts.getTimeout())
-                );
+        if (listenerWrapper != null && opts.getMaxInFlight() > 0) {
+            //-- send it once there is room in flight to the destination
+            final Identity fIdentity = identity;
+            final CmdListenerWrapper<R> fListenerWrapper = listenerWrapper;
+            final JsonCmd fJsonCmd = jsonCmd;
+            final ClubbyOptions fOpts = opts;
+
+            ConcurrencyLimiter.Permit permit = limiter.createPermit(dst, new Runnable() {
+                @Override
+                public void run() {
+                    transmitCmd(fIdentity, dst, fJsonCmd, fOpts, fListenerWrapper);
+                }
+            });
+            listenerWrapper.setPermit(permit);
+
+            if (!limiter.acquire(
+                        permit,
+                        opts.getMaxInFlight(),
+                        opts.getAdaptiveInFlight(),
+                        opts.getInFlightQueueSize()
+                        )) {
+                failCmds(
+                        identity,
+                        new int[] { cmdId },
+                        ClubbyStatus.TOO_MANY_IN_FLIGHT,
+                        "Too many commands in flight"
+                        );
+            }
+        } else {
+            transmitCmd(identity, dst, jsonCmd, opts, listenerWrapper);
+        }
 
-        //-- convert it to text
-        String jsonStr = null;
-        try {
-            jsonStr = mapper.writeValueAsString(jsonFrame);
-        } catch (JsonProcessingException e){
-            e.printStackTrace();
-            System.exit(1);
+        if (hedgedCall != null) {
+            long deadline = budget >= 0 ? now + budget : 0;
+            startHedging(
+                    hedgedCall, identity, cmdId, dst, cmd, args, respClass, opts,
+                    deadline
+                    );
+        }
+
+        return cmdId;
+    }
+
+    /**
+     * Schedules the hedge of the command, see {@link
+     * ClubbyOptions#hedgePercentile(double) ClubbyOptions.hedgePercentile()}.
+     */
+    private <R> void startHedging(
+            HedgedCall<R> hedgedCall,
+            final Identity identity,
+            int cmdId,
+            final String dst,
+            final String cmd,
+            final Object args,
+            final Class<R> respClass,
+            final ClubbyOptions opts,
+            final long deadline
+            ) {
+        hedgedCall.start(
+                cmdId,
+                opts.getHedgePercentile(),
+                opts.getHedgeMaxRate(),
+                timeoutWheel,
+                handlerPool,
+                new HedgedCall.HedgeSender<R>() {
+                    @Override
+                    public int send(CmdListener<R> hedgeListener) {
+                        // The hedge must not join the primary command, is
+                        // not hedged itself, and has whatever is left of the
+                        // primary command's time
+                        ClubbyOptions hedgeOpts = ClubbyOptions.createFrom(opts)
+                            .coalesce(false)
+                            .resendOnReconnect(false)
+                            .hedgePercentile(0)
+                            .timeoutMillis(0)
+                            .deadline(deadline);
+                        return sendCmd(
+                                identity, dst, cmd, args, hedgeListener,
+                                respClass, hedgeOpts, null, false
+                                );
+                    }
+                },
+                new HedgedCall.Forgetter() {
+                    @Override
+                    public void forget(int id) {
+                        forgetCmd(identity, id);
+                    }
+                });
+    }
+
+    /**
+     * Sends the command, either right away or by means of the batcher.
+     */
+    private void transmitCmd(
+            Identity identity,
+            String dst,
+            JsonCmd jsonCmd,
+            ClubbyOptions opts,
+            CmdListenerWrapper<?> listenerWrapper
+            ) {
+        if (jsonCmd.isExpired()) {
+            //-- no point in sending it, the result is not relevant any more
+            if (listenerWrapper != null) {
+                failCmds(
+                        identity,
+                        new int[] { jsonCmd.id },
+                        ClubbyStatus.TIMEOUT,
+                        "Deadline exceeded"
+                        );
+            }
+            return;
+        }
+
+        if (listenerWrapper != null && opts.getResendOnReconnect()) {
+            listenerWrapper.setResendCmd(jsonCmd);
         }
 
-        //-- send it
-        sendText(jsonStr);
+        if (opts.getBatchSize() > 1) {
+            //-- let the batcher send it, together with other commands
+            identity.batcher.add(
+                    dst, jsonCmd, opts.getBatchSize(), opts.getBatchLinger()
+                    );
+        } else {
+            sendFrame(JsonFrame.createFrameCmd(identity, dst, jsonCmd));
+        }
     }
 
     public <R> void call(
@@ -543,23 +1862,498 @@ public final class Clubby {
         callBackend(cmd, args, listener, respClass, null);
     }
 
+    /**
+     * Asynchronous clubby call, see {@link #call(String, String, Object,
+     * CmdListener, Class, ClubbyOptions) call()}.
+     *
+     * @return
+     *      Future which is completed with the response; if the command fails,
+     *      the future is completed exceptionally with {@link ClubbyException}
+     *      carrying status and status message. Cancelling the future forgets
+     *      the command: the response, if any, is ignored.
+     */
+    public <R> CompletableFuture<R> callAsync(
+            String dst,
+            String cmd,
+            Object args,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) {
+        Identity identity = getIdentity(opts);
+        ClubbyFuture<R> future = new ClubbyFuture<R>(this);
+        future.setCmd(
+                identity,
+                sendCmd(identity, dst, cmd, args, future, respClass, opts)
+                );
+        return future;
+    }
+
+    public <R> CompletableFuture<R> callAsync(
+            String dst,
+            String cmd,
+            Object args,
+            Class<R> respClass
+            ) {
+        return callAsync(dst, cmd, args, respClass, null);
+    }
+
+    /**
+     * The same as {@link Clubby#callAsync(String, String, Object, Class)
+     * callAsync()} with destination address set to the backend address.
+     */
+    public <R> CompletableFuture<R> callBackendAsync(
+            String cmd,
+            Object args,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) {
+        return callAsync(backend, cmd, args, respClass, opts);
+    }
+
+    public <R> CompletableFuture<R> callBackendAsync(
+            String cmd,
+            Object args,
+            Class<R> respClass
+            ) {
+        return callBackendAsync(cmd, args, respClass, null);
+    }
+
+    /**
+     * Fan-out clubby call: sends the same command to each of the given
+     * destinations, and aggregates the outcomes, see {@link #call(String,
+     * String, Object, CmdListener, Class, ClubbyOptions) call()}.
+     *
+     * Arguments are serialized only once, and the result is reused for all
+     * the frames. There is a single deadline for the whole call, set by the
+     * timeout or the deadline of the options (the time left is sent with each
+     * command as usual); commands don't time out on their own. Responses of the fan-out
+     * calls are not cached.
+     *
+     * Each destination is called once, even if it's given several times;
+     * the policy counts distinct destinations.
+     *
+     * @param policy
+     *      When the call is complete, see {@link FanOutPolicy}.
+     *
+     * @return
+     *      Future which is completed with per-destination responses and
+     *      errors once the policy is satisfied (or can't be satisfied any
+     *      more), or at the deadline. Commands still pending at that moment
+     *      (or when the future is cancelled) are forgotten.
+     *
+     * @throws IllegalArgumentException - The arguments can't be serialized.
+     */
+    public <R> CompletableFuture<FanOutResult<R>> callMany(
+            Collection<String> dsts,
+            String cmd,
+            Object args,
+            Class<R> respClass,
+            FanOutPolicy policy,
+            ClubbyOptions opts
+            ) {
+        if (opts == null) {
+            opts = defaultOpts;
+        }
+        Identity identity = getIdentity(opts);
+
+        //-- serialize arguments once for all the destinations
+        Object sharedArgs = null;
+        if (args != null) {
+            try {
+                sharedArgs = new SharedArgs(mapper, args);
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("failed to serialize args", e);
+            }
+        }
+
+        // Outcomes are keyed by destination, so call each one once
+        List<String> dstList = new ArrayList<String>(new LinkedHashSet<String>(dsts));
+        final FanOutCall<R> call = new FanOutCall<R>(this, identity, dstList, policy);
+
+        // The whole call shares the deadline: commands are sent with the
+        // time left of it
+        long now = System.currentTimeMillis();
+        long budget = opts.getBudgetMillis(now);
+        if (budget >= 0) {
+            call.setDeadline(timeoutWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    call.onDeadline();
+                }
+            }, budget, TimeUnit.MILLISECONDS));
+            opts = ClubbyOptions.createFrom(opts)
+                .timeoutMillis(0)
+                .deadline(now + budget);
+        }
+
+        for (int i = 0; i < dstList.size() && !call.isDone(); i++) {
+            call.setCmdId(i, sendCmd(
+                        identity,
+                        dstList.get(i),
+                        cmd,
+                        sharedArgs,
+                        call.getMember(i),
+                        respClass,
+                        opts,
+                        null,
+                        false
+                        ));
+        }
+        call.onSent();
+
+        return call;
+    }
+
+    /**
+     * The same as {@link #callMany(Collection, String, Object, Class,
+     * FanOutPolicy, ClubbyOptions) callMany()} with {@link FanOutPolicy#all()
+     * FanOutPolicy.all()}.
+     */
+    public <R> CompletableFuture<FanOutResult<R>> callMany(
+            Collection<String> dsts,
+            String cmd,
+            Object args,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) {
+        return callMany(dsts, cmd, args, respClass, FanOutPolicy.all(), opts);
+    }
+
+    /**
+     * Blocking clubby call, see {@link #call(String, String, Object,
+     * CmdListener, Class, ClubbyOptions) call()}: the calling thread waits
+     * until the response is received (or the command fails). The thread is
+     * parked without holding any monitors, so it's fine to make a lot of
+     * concurrent calls from virtual threads.
+     *
+     * Note that if there is neither timeout nor deadline, the thread can
+     * wait forever.
+     *
+     * @return
+     *      The response.
+     * @throws ClubbyException - The command has failed; the exception
+     *         carries status and status message.
+     * @throws InterruptedException - The thread was interrupted while
+     *         waiting; the command is forgotten then.
+     */
+    public <R> R callSync(
+            String dst,
+            String cmd,
+            Object args,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) throws InterruptedException {
+        Identity identity = getIdentity(opts);
+        SyncCall<R> syncCall = new SyncCall<R>();
+        int cmdId = sendCmd(identity, dst, cmd, args, syncCall, respClass, opts);
+        try {
+            return syncCall.await();
+        } catch (InterruptedException e) {
+            cancelCmd(identity, cmdId, syncCall);
+            throw e;
+        }
+    }
+
+    public <R> R callSync(
+            String dst,
+            String cmd,
+            Object args,
+            Class<R> respClass
+            ) throws InterruptedException {
+        return callSync(dst, cmd, args, respClass, null);
+    }
+
+    /**
+     * The same as {@link Clubby#callSync(String, String, Object, Class)
+     * callSync()} with destination address set to the backend address.
+     */
+    public <R> R callBackendSync(
+            String cmd,
+            Object args,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) throws InterruptedException {
+        return callSync(backend, cmd, args, respClass, opts);
+    }
+
+    public <R> R callBackendSync(
+            String cmd,
+            Object args,
+            Class<R> respClass
+            ) throws InterruptedException {
+        return callBackendSync(cmd, args, respClass, null);
+    }
+
+    /**
+     * Forgets the pending command of the given listener: removes the listener
+     * and cancels the timeout. If the command is shared by coalesced calls,
+     * only the given listener is removed, until it's the last one. If the
+     * call is hedged, the hedge is forgotten as well.
+     */
+    void cancelCmd(Identity identity, int cmdId, CmdListener<?> listener) {
+        CmdListenerManager cmdListenerMan = identity.cmdListenerMan;
+        CmdListenerWrapper<?> listenerWrapper = cmdListenerMan.getListener(cmdId);
+        if (listenerWrapper == null) {
+            return;
+        }
+
+        CmdListener<?> cmdListener = listenerWrapper.getListener();
+        HedgedCall<?> hedgedCall = null;
+        if (cmdListener instanceof HedgedCall) {
+            hedgedCall = (HedgedCall<?>) cmdListener;
+            cmdListener = hedgedCall.getListener();
+        }
+        if (cmdListener instanceof CoalescedCall) {
+            if (!((CoalescedCall<?>) cmdListener).leave(listener)) {
+                return;
+            }
+        } else if (cmdListener != listener) {
+            return;
+        }
+
+        forgetCmd(identity, cmdId);
+        if (hedgedCall != null) {
+            hedgedCall.cancel();
+        }
+    }
+
+    /**
+     * Forgets the pending command, whatever its listener is.
+     */
+    private void forgetCmd(Identity identity, int cmdId) {
+        CmdListenerWrapper<?> listenerWrapper =
+            identity.cmdListenerMan.popListener(cmdId);
+        if (listenerWrapper != null) {
+            listenerWrapper.onCancelled();
+        }
+    }
+
+    /**
+     * Returns key identifying the call for coalescing, or null if the
+     * arguments can't be serialized (then the call is not coalesced).
+     */
+    private CoalescedCall.Key getCoalesceKey(
+            String src,
+            String dst,
+            String cmd,
+            Object args,
+            Class<?> respClass
+            ) {
+        try {
+            return new CoalescedCall.Key(
+                    src, dst, cmd, mapper.writeValueAsString(args), respClass
+                    );
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Register handler of the incoming command: when a frame with the
+     * command `cmd` is received, the arguments are decoded into `argsClass`,
+     * and the handler is called on the handler pool (see {@link
+     * Clubby.Builder#handlerPool(int, int) Builder.handlerPool()}). What the
+     * handler returns is sent back to the command sender. Commands without a
+     * handler are responded to with status 404. Registering another handler
+     * for the same command replaces the previous one.
+     *
+     * This method is thread-safe, and handlers can be registered at any
+     * time.
+     */
+    public <A> void registerHandler(
+            String cmd,
+            CmdHandler<A> handler,
+            Class<A> argsClass
+            ) {
+        defaultIdentity.handlerMan.register(cmd, handler, argsClass);
+    }
+
+    /**
+     * The same as {@link Clubby#registerHandler(String, CmdHandler, Class)
+     * registerHandler()}, for the commands addressed to the given identity,
+     * see {@link #addIdentity(String, String) addIdentity()}.
+     *
+     * @throws IllegalArgumentException - There is no such identity.
+     */
+    public <A> void registerHandler(
+            String identityId,
+            String cmd,
+            CmdHandler<A> handler,
+            Class<A> argsClass
+            ) {
+        getIdentity(identityId).handlerMan.register(cmd, handler, argsClass);
+    }
+
+    /**
+     * Remove handler of the incoming command, if any.
+     */
+    public void unregisterHandler(String cmd) {
+        defaultIdentity.handlerMan.unregister(cmd);
+    }
+
+    /**
+     * Remove handler of the incoming command addressed to the given
+     * identity, if any.
+     */
+    public void unregisterHandler(String identityId, String cmd) {
+        getIdentity(identityId).handlerMan.unregister(cmd);
+    }
+
+    /**
+     * Add identity to send and receive frames on behalf of, over the same
+     * connection: commands are sent as the identity if it's set in {@link
+     * ClubbyOptions#identity(String) ClubbyOptions.identity()}, and incoming
+     * frames with `dst` equal to the identity id are handled by the identity
+     * (the ones with any other `dst` go to the identity given to the
+     * builder). Frames of the identity always carry its pre-shared key, see
+     * {@link Clubby.Builder#sessionAuth(boolean) Builder.sessionAuth()}.
+     *
+     * Each identity has its own table of pending commands, see {@link
+     * Clubby.Builder#identityTableCapacity(int)
+     * Builder.identityTableCapacity()}.
+     *
+     * @throws IllegalArgumentException - The identity exists already.
+     */
+    public void addIdentity(String id, String psk) {
+        Identity identity = new Identity(id, psk, identityTableCapacity);
+        if (id.equals(defaultIdentity.id)
+                || identities.putIfAbsent(id, identity) != null) {
+            throw new IllegalArgumentException("identity exists already: " + id);
+        }
+    }
+
+    /**
+     * Remove identity added by {@link #addIdentity(String, String)
+     * addIdentity()}; its pending commands fail with {@link
+     * ClubbyStatus#NOT_CONNECTED}, and incoming frames addressed to it go to
+     * the default identity from now on. Unknown id is silently ignored.
+     */
+    public void removeIdentity(String id) {
+        Identity identity = identities.remove(id);
+        if (identity == null) {
+            return;
+        }
+        CmdListenerManager cmdListenerMan = identity.cmdListenerMan;
+        for (CmdListenerWrapper<?> listenerWrapper : cmdListenerMan.getPending()) {
+            if (cmdListenerMan.popListener(listenerWrapper.getCmdId()) != null) {
+                dispatchError(
+                        listenerWrapper,
+                        ClubbyStatus.NOT_CONNECTED,
+                        "Identity removed"
+                        );
+            }
+        }
+    }
+
+    /**
+     * Returns identity with the given id.
+     *
+     * @throws IllegalArgumentException - There is no such identity.
+     */
+    private Identity getIdentity(String id) {
+        if (id.equals(defaultIdentity.id)) {
+            return defaultIdentity;
+        }
+        Identity identity = identities.get(id);
+        if (identity == null) {
+            throw new IllegalArgumentException("unknown identity: " + id);
+        }
+        return identity;
+    }
+
     public ClubbyState getState() {
         return state;
     }
 
+    /**
+     * Returns backend address, see {@link Clubby.Builder#backend(String)
+     * Builder.backend()}.
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * Returns number of commands waiting for the response, of all the
+     * identities.
+     */
+    public int getPendingCount() {
+        return pendingCnt.get();
+    }
+
+    /**
+     * Returns number of calls served from the response cache (including the
+     * stale responses).
+     */
+    public long getCacheHits() {
+        return responseCache.getHits();
+    }
+
+    /**
+     * Returns number of cacheable calls which had to be sent, because there
+     * was no usable response in the cache.
+     */
+    public long getCacheMisses() {
+        return responseCache.getMisses();
+    }
+
+    /**
+     * Returns number of responses evicted from the full response cache.
+     */
+    public long getCacheEvictions() {
+        return responseCache.getEvictions();
+    }
+
+    /**
+     * Returns number of hedges sent, see {@link
+     * ClubbyOptions#hedgePercentile(double) ClubbyOptions.hedgePercentile()}.
+     */
+    public long getHedgesFired() {
+        return hedgeTracker.getFired();
+    }
+
+    /**
+     * Returns number of hedges which got the answer before the primary
+     * command.
+     */
+    public long getHedgesWon() {
+        return hedgeTracker.getWon();
+    }
+
+    /**
+     * Returns total size of the outgoing payloads sent while compression was
+     * agreed, before compression; see {@link
+     * Clubby.Builder#compression(int) Builder.compression()}.
+     */
+    public long getBytesBeforeCompression() {
+        return compressor != null ? compressor.getBytesBefore() : 0;
+    }
+
+    /**
+     * Returns total size of the same payloads as they were sent, i.e.
+     * compressed.
+     */
+    public long getBytesAfterCompression() {
+        return compressor != null ? compressor.getBytesAfter() : 0;
+    }
+
     private class TimeoutHandler implements Runnable {
+        Identity identity;
         int cmdId;
 
-        public TimeoutHandler(int cmdId) {
+        public TimeoutHandler(Identity identity, int cmdId) {
+            this.identity = identity;
             this.cmdId = cmdId;
         }
 
         @Override
         public void run() {
-            CmdListenerWrapper<?> listenerWrapper = cmdListenerMan.popListener(cmdId);
+            CmdListenerWrapper<?> listenerWrapper =
+                identity.cmdListenerMan.popListener(cmdId);
             if (listenerWrapper != null) {
-                listenerWrapper.onError(
-                        504,
+                dispatchError(
+                        listenerWrapper,
+                        ClubbyStatus.TIMEOUT,
                         "Response timeout"
                         );
             }
@@ -9,8 +9,45 @@ public class ClubbyException extends RuntimeException {
 
     static final long serialVersionUID = 1;
 
+    private final int status;
+    private final String statusMsg;
+
     public ClubbyException(String msg) {
         super(msg);
+        this.status = 0;
+        this.statusMsg = null;
+    }
+
+    public ClubbyException(String msg, Throwable cause) {
+        super(msg, cause);
+        this.status = 0;
+        this.statusMsg = null;
+    }
+
+    /**
+     * Exception for the failed command, see {@link CmdListener#onError(int,
+     * String) CmdListener.onError()}.
+     */
+    public ClubbyException(int status, String statusMsg) {
+        super(statusMsg + " (status " + status + ")");
+        this.status = status;
+        this.statusMsg = statusMsg;
+    }
+
+    /**
+     * Returns status of the failed command, or 0 if the exception is not
+     * about a failed command.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns status message of the failed command, or null if the exception
+     * is not about a failed command.
+     */
+    public String getStatusMsg() {
+        return statusMsg;
     }
 }
 
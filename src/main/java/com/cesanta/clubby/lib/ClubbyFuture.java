@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Future returned by {@link Clubby#callAsync(String, String, Object, Class,
+ * ClubbyOptions) Clubby.callAsync()}: it serves as the command listener
+ * itself, and cancelling it removes the command from the pending ones.
+ */
+final class ClubbyFuture<R> extends CompletableFuture<R> implements CmdListener<R> {
+
+    private final Clubby clubby;
+    private volatile Clubby.Identity identity;
+    private volatile int cmdId;
+
+    ClubbyFuture(Clubby clubby) {
+        this.clubby = clubby;
+    }
+
+    /**
+     * Sets the command, and the identity it was sent on behalf of.
+     */
+    void setCmd(Clubby.Identity identity, int cmdId) {
+        this.cmdId = cmdId;
+        this.identity = identity;
+    }
+
+    @Override
+    public void onResponse(R response) {
+        complete(response);
+    }
+
+    @Override
+    public void onError(int status, String statusMsg) {
+        completeExceptionally(new ClubbyException(status, statusMsg));
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean ret = super.cancel(mayInterruptIfRunning);
+        if (ret) {
+            Clubby.Identity cur = identity;
+            if (cur != null) {
+                clubby.cancelCmd(cur, cmdId, this);
+            }
+        }
+        return ret;
+    }
+
+}
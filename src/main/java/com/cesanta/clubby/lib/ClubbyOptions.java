@@ -7,7 +7,20 @@ package com.cesanta.clubby.lib;
 
 public final class ClubbyOptions {
 
-    private int timeout = 0;
+    private long timeoutMillis = 0;
+    private long deadline = 0;
+    private int batchSize = 1;
+    private long batchLinger = 0;
+    private boolean resendOnReconnect = false;
+    private int maxInFlight = 0;
+    private boolean adaptiveInFlight = false;
+    private int inFlightQueueSize = 0;
+    private boolean coalesce = false;
+    private long cacheTtl = 0;
+    private long cacheStale = 0;
+    private String identity = null;
+    private double hedgePercentile = 0;
+    private double hedgeMaxRate = 0.05;
 
     private ClubbyOptions() {}
 
@@ -17,7 +30,20 @@ public final class ClubbyOptions {
 
     public static ClubbyOptions createFrom(ClubbyOptions src) {
         ClubbyOptions ret = new ClubbyOptions();
-        ret.timeout(src.getTimeout());
+        ret.timeoutMillis(src.getTimeoutMillis());
+        ret.deadline(src.getDeadline());
+        ret.batchSize(src.getBatchSize());
+        ret.batchLinger(src.getBatchLinger());
+        ret.resendOnReconnect(src.getResendOnReconnect());
+        ret.maxInFlight(src.getMaxInFlight());
+        ret.adaptiveInFlight(src.getAdaptiveInFlight());
+        ret.inFlightQueueSize(src.getInFlightQueueSize());
+        ret.coalesce(src.getCoalesce());
+        ret.cacheTtl(src.getCacheTtl());
+        ret.cacheStale(src.getCacheStale());
+        ret.identity(src.getIdentity());
+        ret.hedgePercentile(src.getHedgePercentile());
+        ret.hedgeMaxRate(src.getHedgeMaxRate());
         return ret;
     }
 
@@ -26,15 +52,269 @@ public final class ClubbyOptions {
      * relevant (and the {@link CmdListener#onError(int, String) onError()}
      * method of the listener will be called). Set 0 for no timeout.
      * Default: 0.
+     *
+     * @see #timeoutMillis(long)
      */
     public final ClubbyOptions timeout(int timeout) {
-        this.timeout = timeout;
-        return this;
+        return timeoutMillis(timeout * 1000L);
     }
 
+    /**
+     * Returns the timeout in seconds, rounded up.
+     */
     public final int getTimeout() {
-        return timeout;
+        return (int) ((timeoutMillis + 999) / 1000);
     }
 
-}
+    /**
+     * The same as {@link #timeout(int) timeout()}, in milliseconds. The
+     * remaining time is sent with the command, so that the destination can
+     * drop the command once the result is no longer relevant. Default: 0.
+     *
+     * The timeout is tracked in milliseconds, but it fires on a tick of the
+     * timeout wheel: up to one tick (10 ms by default) late, see {@link
+     * Clubby.Builder#timeoutTick(long) Clubby.Builder.timeoutTick()}.
+     */
+    public final ClubbyOptions timeoutMillis(long millis) {
+        this.timeoutMillis = millis;
+        return this;
+    }
+
+    public final long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Set absolute time after which the command result is no longer relevant,
+     * in milliseconds since the epoch (as returned by {@link
+     * System#currentTimeMillis()}). Meant to pass the deadline of the work
+     * being done on to the commands it makes; the options with the deadline
+     * shouldn't be reused for later work. If the timeout is set as well,
+     * whichever comes first applies. If the deadline has passed already, the
+     * command isn't sent, and fails with {@link ClubbyStatus#TIMEOUT}. Like
+     * the timeout, it fires within one tick of the timeout wheel. Set 0 for
+     * no deadline. Default: 0.
+     */
+    public final ClubbyOptions deadline(long epochMillis) {
+        this.deadline = epochMillis;
+        return this;
+    }
+
+    public final long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Returns number of milliseconds left for the command sent at `nowMillis`
+     * (0 if there is no time left), or -1 if there is neither timeout nor
+     * deadline.
+     */
+    final long getBudgetMillis(long nowMillis) {
+        long budget = timeoutMillis > 0 ? timeoutMillis : -1;
+        if (deadline > 0) {
+            long left = Math.max(0, deadline - nowMillis);
+            budget = budget < 0 ? left : Math.min(budget, left);
+        }
+        return budget;
+    }
+
+    /**
+     * Set max number of commands to the same destination which are sent in a
+     * single frame. If greater than 1, the command is not sent right away:
+     * it's collected together with other commands to the same destination,
+     * and the frame is sent once it has `batchSize` commands, or when the
+     * linger time is over, whichever comes first. See {@link
+     * #batchLinger(long) batchLinger()}. Set 1 to send each command in its
+     * own frame. Default: 1.
+     */
+    public final ClubbyOptions batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set max number of microseconds for which a command can wait for other
+     * commands to the same destination, in order to be sent in the same
+     * frame. Only makes sense if {@link #batchSize(int) batchSize} is greater
+     * than 1. Default: 0.
+     */
+    public final ClubbyOptions batchLinger(long micros) {
+        this.batchLinger = micros;
+        return this;
+    }
+
+    public final long getBatchLinger() {
+        return batchLinger;
+    }
+
+    /**
+     * Set whether the command should be sent again if the connection is lost
+     * before the response is received, and then re-established (see {@link
+     * Clubby.Builder#reconnect(boolean) Builder.reconnect()}). Only makes
+     * sense for idempotent commands. If false, the command fails with {@link
+     * ClubbyStatus#CONNECTION_LOST} as soon as the connection is lost.
+     * Default: false.
+     */
+    public final ClubbyOptions resendOnReconnect(boolean resend) {
+        this.resendOnReconnect = resend;
+        return this;
+    }
+
+    public final boolean getResendOnReconnect() {
+        return resendOnReconnect;
+    }
+
+    /**
+     * Set max number of commands in flight (sent, but not yet responded to)
+     * to the same destination. When the limit is reached, the command waits
+     * until some other command is done, if there is room in the queue (see
+     * {@link #inFlightQueueSize(int) inFlightQueueSize()}); otherwise, it
+     * fails with {@link ClubbyStatus#TOO_MANY_IN_FLIGHT}. Only commands with
+     * a listener are counted. Set 0 for no limit. Default: 0.
+     *
+     * A waiting command is sent by the {@link
+     * Clubby.Builder#callbackExecutor(CallbackExecutor) callback executor}
+     * once there is room; with the inline executor, by the thread which has
+     * made the room (e.g. the one reading the response).
+     */
+    public final ClubbyOptions maxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    public final int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Set whether the limit of commands in flight should adapt to the
+     * destination: the actual limit grows while the responses are fast, up to
+     * {@link #maxInFlight(int) maxInFlight}, and shrinks when the latency goes
+     * up, or commands time out. Default: false.
+     */
+    public final ClubbyOptions adaptiveInFlight(boolean adaptive) {
+        this.adaptiveInFlight = adaptive;
+        return this;
+    }
 
+    public final boolean getAdaptiveInFlight() {
+        return adaptiveInFlight;
+    }
+
+    /**
+     * Set max number of commands to the same destination which can wait for
+     * the room in flight, see {@link #maxInFlight(int) maxInFlight()}; the
+     * timeout of the command includes the time it's waiting. Set 0 to fail
+     * the commands right away. Default: 0.
+     */
+    public final ClubbyOptions inFlightQueueSize(int size) {
+        this.inFlightQueueSize = size;
+        return this;
+    }
+
+    public final int getInFlightQueueSize() {
+        return inFlightQueueSize;
+    }
+
+    /**
+     * Set whether the call should be coalesced with identical calls (same
+     * destination, command, arguments and response type) which are in
+     * flight: instead of sending another command, the listener joins the
+     * pending one, and gets the same decoded response object, so the response
+     * should be treated as read-only. Only makes sense for read-only
+     * commands; the timeout of the joined command applies. Default: false.
+     */
+    public final ClubbyOptions coalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+        return this;
+    }
+
+    public final boolean getCoalesce() {
+        return coalesce;
+    }
+
+    /**
+     * Set number of milliseconds for which the successful response is kept
+     * in the response cache: identical calls (same destination, command and
+     * arguments) made within that time get the cached response, without
+     * sending anything. Only makes sense for idempotent commands. Set 0 not
+     * to cache the response. Default: 0.
+     *
+     * @see Clubby.Builder#responseCacheSize(int)
+     */
+    public final ClubbyOptions cacheTtl(long millis) {
+        this.cacheTtl = millis;
+        return this;
+    }
+
+    public final long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * Set number of milliseconds after the {@link #cacheTtl(long) TTL} for
+     * which the stale cached response is still used, while it's refreshed in
+     * the background (stale-while-revalidate). Default: 0.
+     */
+    public final ClubbyOptions cacheStale(long millis) {
+        this.cacheStale = millis;
+        return this;
+    }
+
+    public final long getCacheStale() {
+        return cacheStale;
+    }
+
+    /**
+     * Set id of the identity to send the command on behalf of, see {@link
+     * Clubby#addIdentity(String, String) Clubby.addIdentity()}; null means the
+     * identity given to the builder. Default: null.
+     */
+    public final ClubbyOptions identity(String id) {
+        this.identity = id;
+        return this;
+    }
+
+    public final String getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Set percentile of the recent latency of the destination (e.g. 0.95)
+     * after which the command is hedged: if there is no response by then, a
+     * duplicate command is sent, and whichever answer comes first is taken;
+     * the other command is forgotten. Only makes sense for read-only
+     * commands. Hedges start once enough latencies of the destination are
+     * known; the timeout of the call still applies. Set 0 not to hedge.
+     * Default: 0.
+     *
+     * @see Clubby#getHedgesFired()
+     */
+    public final ClubbyOptions hedgePercentile(double percentile) {
+        this.hedgePercentile = percentile;
+        return this;
+    }
+
+    public final double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Set max share of the hedged calls to the destination which can be
+     * hedged, so that hedging can't multiply the load of a destination which
+     * is slow for everybody. Default: 0.05.
+     */
+    public final ClubbyOptions hedgeMaxRate(double rate) {
+        this.hedgeMaxRate = rate;
+        return this;
+    }
+
+    public final double getHedgeMaxRate() {
+        return hedgeMaxRate;
+    }
+
+}
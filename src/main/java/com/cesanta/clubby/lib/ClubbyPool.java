@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Pool of Clubby clients connected to the same server.
+ *
+ * Each client has its own websocket, its own reading thread and its own table
+ * of pending commands, so the responses are received and parsed in parallel.
+ * Each call is routed to the client with the least number of pending
+ * commands; connected clients are preferred.
+ *
+ * Usage example:
+ *
+ *     ClubbyPool pool = new Clubby.Builder()
+ *             .id("//api.mongoose-iot.com/d/my_device_id")
+ *             .psk("my_device_psk")
+ *             .buildPool(4);
+ *     pool.connect();
+ */
+public final class ClubbyPool {
+
+    private final List<Clubby> clubbies;
+    private final String backend;
+
+    ClubbyPool(Clubby.Builder builder, int size) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("illegal pool size: " + size);
+        }
+
+        List<Clubby> list = new ArrayList<Clubby>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(builder.build());
+        }
+        clubbies = Collections.unmodifiableList(list);
+        backend = list.get(0).getBackend();
+    }
+
+    /**
+     * Returns clients of the pool.
+     */
+    public List<Clubby> getClubbies() {
+        return clubbies;
+    }
+
+    /**
+     * Add generic Clubby listener to each client of the pool. Null is
+     * silently ignored.
+     */
+    public void addListener(ClubbyListener listener) {
+        for (Clubby clubby : clubbies) {
+            clubby.addListener(listener);
+        }
+    }
+
+    /**
+     * Remove generic Clubby listener from each client of the pool. Null is
+     * silently ignored.
+     */
+    public void removeListener(ClubbyListener listener) {
+        for (Clubby clubby : clubbies) {
+            clubby.removeListener(listener);
+        }
+    }
+
+    /**
+     * Connect all the clients, see {@link Clubby#connect()}.
+     */
+    public void connect() {
+        for (Clubby clubby : clubbies) {
+            clubby.connect();
+        }
+    }
+
+    /**
+     * Disconnect all the clients, see {@link Clubby#disconnect()}.
+     */
+    public void disconnect() {
+        for (Clubby clubby : clubbies) {
+            clubby.disconnect();
+        }
+    }
+
+    /**
+     * Close all the clients, see {@link Clubby#close()}.
+     */
+    public void close() {
+        for (Clubby clubby : clubbies) {
+            clubby.close();
+        }
+    }
+
+    /**
+     * Returns whether at least one client of the pool is connected.
+     */
+    public boolean isConnected() {
+        for (Clubby clubby : clubbies) {
+            if (clubby.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set default options of each client of the pool.
+     */
+    public void setDefaultOptions(ClubbyOptions opts) {
+        for (Clubby clubby : clubbies) {
+            clubby.setDefaultOptions(opts);
+        }
+    }
+
+    public ClubbyOptions getOptions() {
+        return clubbies.get(0).getOptions();
+    }
+
+    /**
+     * Returns total number of commands waiting for the response.
+     */
+    public int getPendingCount() {
+        int ret = 0;
+        for (Clubby clubby : clubbies) {
+            ret += clubby.getPendingCount();
+        }
+        return ret;
+    }
+
+    /**
+     * The same as {@link Clubby#call(String, String, Object, CmdListener,
+     * Class, ClubbyOptions) Clubby.call()}, performed by the least loaded
+     * client of the pool.
+     */
+    public <R> void call(
+            String dst,
+            String cmd,
+            Object args,
+            CmdListener<R> listener,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) {
+        pick().call(dst, cmd, args, listener, respClass, opts);
+    }
+
+    public <R> void call(
+            String dst,
+            String cmd,
+            Object args,
+            CmdListener<R> listener,
+            Class<R> respClass
+            ) {
+        call(dst, cmd, args, listener, respClass, null);
+    }
+
+    /**
+     * The same as {@link ClubbyPool#call(String, String, Object, CmdListener,
+     * Class) call()} with destination address set to the backend address.
+     */
+    public <R> void callBackend(
+            String cmd,
+            Object args,
+            CmdListener<R> listener,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) {
+        call(backend, cmd, args, listener, respClass, opts);
+    }
+
+    public <R> void callBackend(
+            String cmd,
+            Object args,
+            CmdListener<R> listener,
+            Class<R> respClass
+            ) {
+        callBackend(cmd, args, listener, respClass, null);
+    }
+
+    /**
+     * The same as {@link Clubby#callAsync(String, String, Object, Class,
+     * ClubbyOptions) Clubby.callAsync()}, performed by the least loaded
+     * client of the pool.
+     */
+    public <R> CompletableFuture<R> callAsync(
+            String dst,
+            String cmd,
+            Object args,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) {
+        return pick().callAsync(dst, cmd, args, respClass, opts);
+    }
+
+    public <R> CompletableFuture<R> callAsync(
+            String dst,
+            String cmd,
+            Object args,
+            Class<R> respClass
+            ) {
+        return callAsync(dst, cmd, args, respClass, null);
+    }
+
+    public <R> CompletableFuture<R> callBackendAsync(
+            String cmd,
+            Object args,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) {
+        return callAsync(backend, cmd, args, respClass, opts);
+    }
+
+    public <R> CompletableFuture<R> callBackendAsync(
+            String cmd,
+            Object args,
+            Class<R> respClass
+            ) {
+        return callBackendAsync(cmd, args, respClass, null);
+    }
+
+    /**
+     * The same as {@link Clubby#callSync(String, String, Object, Class,
+     * ClubbyOptions) Clubby.callSync()}, performed by the least loaded client
+     * of the pool.
+     */
+    public <R> R callSync(
+            String dst,
+            String cmd,
+            Object args,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) throws InterruptedException {
+        return pick().callSync(dst, cmd, args, respClass, opts);
+    }
+
+    public <R> R callSync(
+            String dst,
+            String cmd,
+            Object args,
+            Class<R> respClass
+            ) throws InterruptedException {
+        return callSync(dst, cmd, args, respClass, null);
+    }
+
+    public <R> R callBackendSync(
+            String cmd,
+            Object args,
+            Class<R> respClass,
+            ClubbyOptions opts
+            ) throws InterruptedException {
+        return callSync(backend, cmd, args, respClass, opts);
+    }
+
+    public <R> R callBackendSync(
+            String cmd,
+            Object args,
+            Class<R> respClass
+            ) throws InterruptedException {
+        return callBackendSync(cmd, args, respClass, null);
+    }
+
+    /**
+     * Returns the client with the least number of pending commands,
+     * preferring the connected ones.
+     */
+    private Clubby pick() {
+        Clubby best = null;
+        int bestCnt = Integer.MAX_VALUE;
+        boolean bestConnected = false;
+
+        for (Clubby clubby : clubbies) {
+            boolean connected = clubby.getState() == ClubbyState.CONNECTED;
+            int cnt = clubby.getPendingCount();
+
+            if (best == null
+                    || (connected && !bestConnected)
+                    || (connected == bestConnected && cnt < bestCnt)) {
+                best = clubby;
+                bestCnt = cnt;
+                bestConnected = connected;
+            }
+        }
+
+        return best;
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+/**
+ * Statuses reported by the library itself to {@link CmdListener#onError(int,
+ * String) CmdListener.onError()}, i.e. when the command has failed on this
+ * side, without a response from the destination.
+ */
+public final class ClubbyStatus {
+
+    /**
+     * The command wasn't sent because the frame carrying it couldn't be
+     * encoded; usually it means that the arguments can't be serialized.
+     */
+    public static final int ENCODING_FAILED = 400;
+
+    /**
+     * The command wasn't sent because there are too many commands in flight
+     * to the destination, and no room to wait, see {@link
+     * ClubbyOptions#maxInFlight(int) ClubbyOptions.maxInFlight()}.
+     */
+    public static final int TOO_MANY_IN_FLIGHT = 429;
+
+    /**
+     * The command was sent, but the connection was lost before the response
+     * was received. See {@link ClubbyOptions#resendOnReconnect(boolean)
+     * ClubbyOptions.resendOnReconnect()}.
+     */
+    public static final int CONNECTION_LOST = 502;
+
+    /**
+     * The command wasn't sent because Clubby is not connected.
+     */
+    public static final int NOT_CONNECTED = 503;
+
+    /**
+     * No response was received within the timeout.
+     */
+    public static final int TIMEOUT = 504;
+
+    /**
+     * The command wasn't sent because the send queue is full, see {@link
+     * Clubby.Builder#sendQueuePolicy(SendQueuePolicy)
+     * Builder.sendQueuePolicy()}.
+     */
+    public static final int SEND_QUEUE_FULL = 507;
+
+    private ClubbyStatus() {}
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+/**
+ * Handler of the incoming command, parametrized with the type of the command
+ * arguments; see {@link Clubby#registerHandler(String, CmdHandler, Class)
+ * Clubby.registerHandler()}.
+ *
+ * If you don't care about the arguments, just use `Object`.
+ */
+public interface CmdHandler<A> {
+
+    /**
+     * Called for each incoming command, on a thread of the handler pool.
+     * Returned object is serialized by means of Jackson library and sent
+     * back as the response; return null to respond without a payload.
+     *
+     * To fail the command, throw {@link ClubbyException} created with the
+     * status and the status message, see {@link
+     * ClubbyException#ClubbyException(int, String) ClubbyException()}; any
+     * other exception fails the command with status 500.
+     *
+     * @param src
+     *      Address of the command sender.
+     * @param args
+     *      Command arguments, or null if the command has none.
+     */
+    public Object onCommand(String src, A args) throws Exception;
+
+}
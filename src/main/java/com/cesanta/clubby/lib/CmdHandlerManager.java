@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.cesanta.clubby.lib.Clubby.JsonResp;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Registry of the incoming command handlers of a single identity.
+ *
+ * Handlers are looked up by the command name in a hash map, and run on the
+ * pool shared by all the identities; arguments are decoded from the token
+ * buffer on the pool thread, so the thread reading the websocket only has to
+ * find the handler. The pool is bounded: when its queue is full, commands
+ * are refused right away, with {@link #STATUS_BUSY}. Commands whose deadline
+ * has passed while they were waiting for a thread are dropped with {@link
+ * #STATUS_EXPIRED}, without running the handler.
+ */
+final class CmdHandlerManager {
+
+    /* Statuses of the responses to the commands which can't be handled */
+    static final int STATUS_FAILED = 500;
+    static final int STATUS_BAD_ARGS = 400;
+    static final int STATUS_UNKNOWN_CMD = 404;
+    static final int STATUS_BUSY = 503;
+    static final int STATUS_EXPIRED = 504;
+
+    /**
+     * Actually sends the response back to the command sender.
+     */
+    interface RespSender {
+        void send(String dst, JsonResp resp);
+    }
+
+    private static final class Registration<A> {
+        final CmdHandler<A> handler;
+        final ObjectReader argsReader;
+
+        Registration(CmdHandler<A> handler, ObjectReader argsReader) {
+            this.handler = handler;
+            this.argsReader = argsReader;
+        }
+    }
+
+    private final ObjectMapper mapper;
+    private final RespSender sender;
+
+    private final ConcurrentMap<String, Registration<?>> handlers =
+        new ConcurrentHashMap<String, Registration<?>>();
+
+    private final Executor pool;
+
+    /**
+     * @param pool
+     *      Pool to run the handlers on, see {@link #createPool(int, int)
+     *      createPool()}.
+     * @param sender
+     *      Sender of the responses on behalf of the identity.
+     */
+    CmdHandlerManager(ObjectMapper mapper, Executor pool, RespSender sender) {
+        this.mapper = mapper;
+        this.pool = pool;
+        this.sender = sender;
+    }
+
+    /**
+     * Creates the pool for the handlers.
+     *
+     * @param threads
+     *      Max number of handlers run concurrently; threads are started on
+     *      demand, and stopped when idle.
+     * @param queueCapacity
+     *      Max number of commands waiting for a thread.
+     */
+    static Executor createPool(int threads, int queueCapacity) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("illegal number of threads: " + threads);
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                threads, threads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+                new DaemonThreadFactory("clubby-handler")
+                );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    <A> void register(String cmd, CmdHandler<A> handler, Class<A> argsClass) {
+        handlers.put(cmd, new Registration<A>(handler, mapper.readerFor(argsClass)));
+    }
+
+    void unregister(String cmd) {
+        handlers.remove(cmd);
+    }
+
+    /**
+     * Runs the handler of the incoming command on the pool; the response is
+     * sent back to `src` once the handler is done. Commands without id don't
+     * get any response.
+     */
+    void handle(String src, FrameDecoder.Cmd cmd) {
+        Registration<?> registration = handlers.get(cmd.cmd);
+        if (registration == null) {
+            respond(src, cmd.id, STATUS_UNKNOWN_CMD, "Unknown command: " + cmd.cmd, null);
+            return;
+        }
+
+        try {
+            pool.execute(new HandlerTask(registration, src, cmd));
+        } catch (RejectedExecutionException e) {
+            respond(src, cmd.id, STATUS_BUSY, "Too many commands in progress", null);
+        }
+    }
+
+    private void respond(String dst, int id, int status, String statusMsg, Object resp) {
+        if (id == 0) {
+            return;
+        }
+        JsonResp jsonResp = new JsonResp();
+        jsonResp.id = id;
+        jsonResp.status = status;
+        jsonResp.status_msg = statusMsg;
+        jsonResp.resp = resp;
+        sender.send(dst, jsonResp);
+    }
+
+    private final class HandlerTask implements Runnable {
+        private final Registration<?> registration;
+        private final String src;
+        private final FrameDecoder.Cmd cmd;
+
+        HandlerTask(Registration<?> registration, String src, FrameDecoder.Cmd cmd) {
+            this.registration = registration;
+            this.src = src;
+            this.cmd = cmd;
+        }
+
+        @Override
+        public void run() {
+            if (cmd.isExpired()) {
+                respond(src, cmd.id, STATUS_EXPIRED, "Deadline exceeded", null);
+                return;
+            }
+
+            TokenBuffer resp;
+            try {
+                resp = encode(invoke(registration));
+            } catch (ClubbyException e) {
+                if (e.getStatus() != 0) {
+                    respond(src, cmd.id, e.getStatus(), e.getStatusMsg(), null);
+                } else {
+                    respond(src, cmd.id, STATUS_FAILED, e.getMessage(), null);
+                }
+                return;
+            } catch (Exception e) {
+                String msg = e.getMessage() != null ? e.getMessage() : e.toString();
+                respond(src, cmd.id, STATUS_FAILED, msg, null);
+                return;
+            }
+            respond(src, cmd.id, 0, "", resp);
+        }
+
+        private <A> Object invoke(Registration<A> registration) throws Exception {
+            A args = null;
+            if (cmd.args != null) {
+                try {
+                    args = registration.argsReader.readValue(cmd.args.asParser());
+                } catch (IOException e) {
+                    throw new ClubbyException(
+                            STATUS_BAD_ARGS, "Invalid arguments: " + e.getMessage()
+                            );
+                }
+            }
+            return registration.handler.onCommand(src, args);
+        }
+
+        /**
+         * Serializes the response right here, so that a response which can't
+         * be serialized fails the command instead of the frame which carries
+         * it (and possibly other responses).
+         */
+        private TokenBuffer encode(Object resp) throws ClubbyException {
+            if (resp == null) {
+                return null;
+            }
+            TokenBuffer buf = new TokenBuffer(mapper, false);
+            try {
+                mapper.writeValue(buf, resp);
+            } catch (IOException e) {
+                throw new ClubbyException(
+                        STATUS_FAILED, "Failed to serialize response: " + e.getMessage()
+                        );
+            }
+            return buf;
+        }
+    }
+
+}
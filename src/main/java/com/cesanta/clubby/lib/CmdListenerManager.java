@@ -5,24 +5,181 @@
 
 package com.cesanta.clubby.lib;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Table of pending commands, keyed by command id.
+ *
+ * Command ids are allocated sequentially, so the main storage is an array of
+ * slots indexed by `cmdId & (capacity - 1)`: adding and popping a listener is
+ * a single CAS on its slot, without locks and without boxing the id. If the
+ * slot is taken by another pending command (which happens only when more
+ * than `capacity` commands are pending, or when an old command is still
+ * pending after the ids have wrapped around), the listener goes to the
+ * overflow map instead.
+ */
 final class CmdListenerManager {
 
-    private final Map<Integer, CmdListenerWrapper<?>> listeners =
-        new HashMap<Integer, CmdListenerWrapper<?>>();
+    private final AtomicReferenceArray<CmdListenerWrapper<?>> slots;
+    private final int mask;
+
+    private final ConcurrentMap<Integer, CmdListenerWrapper<?>> overflow =
+        new ConcurrentHashMap<Integer, CmdListenerWrapper<?>>();
+
+    /*
+     * Number of listeners in the overflow map; lets the common path skip the
+     * map (and boxing of the id) altogether
+     */
+    private final AtomicInteger overflowCnt = new AtomicInteger(0);
+
+    /*
+     * Total number of pending listeners; might be shared by several tables,
+     * so that the total is known without walking the tables
+     */
+    private final AtomicInteger pendingCnt;
+
+    CmdListenerManager(int capacity) {
+        this(capacity, new AtomicInteger(0));
+    }
+
+    /**
+     * @param capacity
+     *      Number of slots, rounded up to a power of two.
+     * @param pendingCnt
+     *      Counter of the pending listeners, which might be shared with
+     *      other tables.
+     */
+    CmdListenerManager(int capacity, AtomicInteger pendingCnt) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("illegal capacity: " + capacity);
+        }
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        slots = new AtomicReferenceArray<CmdListenerWrapper<?>>(size);
+        mask = size - 1;
+        this.pendingCnt = pendingCnt;
+    }
+
+    /**
+     * Add listener to the table. Returns false if there is a pending listener
+     * with the same command id already (in which case the new one is not
+     * added); null is silently ignored.
+     */
+    public boolean addCmdListener(CmdListenerWrapper<?> listenerWrapper) {
+        if (listenerWrapper == null) {
+            return true;
+        }
+
+        int id = listenerWrapper.getCmdId();
+
+        if (overflowCnt.get() > 0 && overflow.containsKey(id)) {
+            return false;
+        }
+
+        int idx = id & mask;
+        if (slots.compareAndSet(idx, null, listenerWrapper)) {
+            pendingCnt.incrementAndGet();
+            return true;
+        }
+
+        CmdListenerWrapper<?> cur = slots.get(idx);
+        if (cur != null && cur.getCmdId() == id) {
+            return false;
+        }
+
+        overflowCnt.incrementAndGet();
+        if (overflow.putIfAbsent(id, listenerWrapper) != null) {
+            overflowCnt.decrementAndGet();
+            return false;
+        }
+        pendingCnt.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remove listener with the given command id from the table and return
+     * it; if there is no such listener (it has been popped already), returns
+     * null.
+     */
+    public CmdListenerWrapper<?> popListener(int id) {
+        int idx = id & mask;
+        CmdListenerWrapper<?> ret = slots.get(idx);
+        if (ret != null && ret.getCmdId() == id) {
+            // If CAS fails, the listener was just popped by another thread
+            if (!slots.compareAndSet(idx, ret, null)) {
+                return null;
+            }
+            pendingCnt.decrementAndGet();
+            return ret;
+        }
 
-    public synchronized void addCmdListener(CmdListenerWrapper<?> listenerWrapper) {
-        if (listenerWrapper != null) {
-            listeners.put(listenerWrapper.getCmdId(), listenerWrapper);
+        if (overflowCnt.get() > 0) {
+            ret = overflow.remove(id);
+            if (ret != null) {
+                overflowCnt.decrementAndGet();
+                pendingCnt.decrementAndGet();
+                return ret;
+            }
         }
+
+        return null;
+    }
+
+    /**
+     * Returns whether there is a pending listener with the given command id;
+     * the listener stays in the table.
+     */
+    public boolean isPending(int id) {
+        return getListener(id) != null;
     }
 
-    public synchronized CmdListenerWrapper<?> popListener(int id) {
-        CmdListenerWrapper<?> ret = listeners.get(id);
-        listeners.remove(id);
+    /**
+     * Returns pending listener with the given command id, or null; the
+     * listener stays in the table.
+     */
+    public CmdListenerWrapper<?> getListener(int id) {
+        CmdListenerWrapper<?> cur = slots.get(id & mask);
+        if (cur != null && cur.getCmdId() == id) {
+            return cur;
+        }
+        if (overflowCnt.get() > 0) {
+            return overflow.get(id);
+        }
+        return null;
+    }
+
+    /**
+     * Returns number of pending listeners, of all the tables sharing the
+     * counter.
+     */
+    public int getPendingCount() {
+        return pendingCnt.get();
+    }
+
+    /**
+     * Returns all the listeners which are pending at the moment; the
+     * listeners stay in the table.
+     */
+    public List<CmdListenerWrapper<?>> getPending() {
+        List<CmdListenerWrapper<?>> ret = new ArrayList<CmdListenerWrapper<?>>();
+        for (int i = 0; i < slots.length(); i++) {
+            CmdListenerWrapper<?> listenerWrapper = slots.get(i);
+            if (listenerWrapper != null) {
+                ret.add(listenerWrapper);
+            }
+        }
+        if (overflowCnt.get() > 0) {
+            ret.addAll(overflow.values());
+        }
         return ret;
     }
 }
-
@@ -6,9 +6,9 @@
 package com.cesanta.clubby.lib;
 
 import java.io.IOException;
-import java.util.concurrent.Future;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 /**
  * Wrapper for the user-provided command listener.
@@ -25,26 +25,70 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  */
 final class CmdListenerWrapper<R> {
 
-    private CmdListener<R> listener;
-    private Class<R> cls;
+    private final CmdListener<R> listener;
+    private final ObjectReader reader;
+    private final String dst;
 
     private int cmdId;
-    private Future<?> timeoutFuture = null;
 
-    CmdListenerWrapper(CmdListener<R> listener, Class<R> cls) {
+    /*
+     * The command itself; only kept for the commands which should be sent
+     * again after reconnect
+     */
+    private Clubby.JsonCmd resendCmd = null;
+
+    /*
+     * Whether the command had been written to the connection which is lost,
+     * so it should be sent again after reconnect
+     */
+    private volatile boolean resendDue = false;
+
+    /*
+     * Timeout is set after the wrapper is added to CmdListenerManager, so it
+     * can be cancelled by another thread
+     */
+    private volatile TimeoutWheel.Timeout timeout = null;
+
+    /*
+     * Permit of the in-flight limit, if any; released once the command is
+     * done
+     */
+    private volatile ConcurrencyLimiter.Permit permit = null;
+
+    /*
+     * Key and lifetime of the response in the response cache; the key is null
+     * if the response should not be cached
+     */
+    private String cacheKey = null;
+    private long cacheTtl = 0;
+    private long cacheStale = 0;
+
+    /**
+     * @param reader
+     *      Reader for the response type, see {@link
+     *      com.fasterxml.jackson.databind.ObjectMapper#readerFor(Class)
+     *      ObjectMapper.readerFor()}.
+     * @param dst
+     *      Destination address of the command.
+     */
+    CmdListenerWrapper(CmdListener<R> listener, ObjectReader reader, String dst) {
         this.listener = listener;
-        this.cls = cls;
+        this.reader = reader;
+        this.dst = dst;
     }
 
-    protected void onResponseGeneric(
-            ObjectMapper mapper, String respJsonStr
-            ) throws IOException  {
+    /**
+     * Binds the buffered response payload to the response type and notifies
+     * the listener. Null payload (the response has no `resp` field) is
+     * delivered as null.
+     */
+    protected void onResponseGeneric(TokenBuffer resp) throws IOException {
         cancelTimeout();
-        this.listener.onResponse(
-                mapper.readValue(
-                    respJsonStr, cls
-                    )
-                );
+        R value = null;
+        if (resp != null) {
+            value = reader.readValue(resp.asParser());
+        }
+        this.listener.onResponse(value);
     }
 
     protected void onError(int status, String statusMsg) {
@@ -56,18 +100,111 @@ final class CmdListenerWrapper<R> {
         this.cmdId = cmdId;
     }
 
-    void setTimeoutFuture(Future<?> timeoutFuture) {
-        this.timeoutFuture = timeoutFuture;
+    void setTimeout(TimeoutWheel.Timeout timeout) {
+        this.timeout = timeout;
     }
 
     int getCmdId() {
         return this.cmdId;
     }
 
+    CmdListener<R> getListener() {
+        return listener;
+    }
+
+    String getDst() {
+        return dst;
+    }
+
+    void setPermit(ConcurrencyLimiter.Permit permit) {
+        this.permit = permit;
+    }
+
+    /**
+     * Gives the in-flight permit back, see {@link
+     * ConcurrencyLimiter.Permit#release(int)}.
+     */
+    void releasePermit(int status) {
+        ConcurrencyLimiter.Permit p = permit;
+        if (p != null) {
+            permit = null;
+            p.release(status);
+        }
+    }
+
+    void setCache(String cacheKey, long ttl, long stale) {
+        this.cacheKey = cacheKey;
+        this.cacheTtl = ttl;
+        this.cacheStale = stale;
+    }
+
+    String getCacheKey() {
+        return cacheKey;
+    }
+
+    long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    long getCacheStale() {
+        return cacheStale;
+    }
+
+    void setResendCmd(Clubby.JsonCmd jsonCmd) {
+        this.resendCmd = jsonCmd;
+    }
+
+    boolean isResendable() {
+        return resendCmd != null;
+    }
+
+    Clubby.JsonCmd getResendCmd() {
+        return resendCmd;
+    }
+
+    /**
+     * Called when the connection is lost, for the resendable command: it's
+     * due to be sent again if it has been written to the lost connection.
+     * If it's still waiting in the send queue or in the batch, it's going to
+     * be sent anyway. Returns whether the command is due.
+     */
+    boolean onConnectionLost() {
+        if (resendCmd != null && resendCmd.isWritten()) {
+            resendCmd.setWritten(false);
+            resendDue = true;
+        }
+        return resendDue;
+    }
+
+    /**
+     * Returns whether the command should be sent again, and clears the flag.
+     */
+    boolean takeResendDue() {
+        if (!resendDue) {
+            return false;
+        }
+        resendDue = false;
+        return true;
+    }
+
+    /**
+     * Called when the command is cancelled by the caller: the listener is not
+     * notified.
+     */
+    void onCancelled() {
+        cancelTimeout();
+        ConcurrencyLimiter.Permit p = permit;
+        if (p != null) {
+            permit = null;
+            p.release();
+        }
+    }
+
     private void cancelTimeout() {
-        if (timeoutFuture != null) {
-            timeoutFuture.cancel(false);
-            timeoutFuture = null;
+        TimeoutWheel.Timeout t = timeout;
+        if (t != null) {
+            t.cancel();
+            timeout = null;
         }
     }
 
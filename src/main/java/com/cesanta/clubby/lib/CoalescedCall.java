@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Command shared by identical concurrent calls, see {@link
+ * ClubbyOptions#coalesce(boolean) ClubbyOptions.coalesce()}.
+ *
+ * It's the listener of the command which is actually sent; listeners of the
+ * calls which join it are collected, and the single decoded response (or
+ * error) is fanned out to all of them. Once the command is done, the call is
+ * closed and removed from the map of in-flight calls, so that the next
+ * identical call sends a new command.
+ */
+final class CoalescedCall<R> implements CmdListener<R> {
+
+    /**
+     * Identity of the call: source and destination, command, serialized
+     * arguments and the response type.
+     */
+    static final class Key {
+        private final String src;
+        private final String dst;
+        private final String cmd;
+        private final String args;
+        private final Class<?> respClass;
+        private final int hash;
+
+        Key(String src, String dst, String cmd, String args, Class<?> respClass) {
+            this.src = src;
+            this.dst = dst;
+            this.cmd = cmd;
+            this.args = args;
+            this.respClass = respClass;
+
+            int h = src.hashCode();
+            h = 31 * h + dst.hashCode();
+            h = 31 * h + cmd.hashCode();
+            h = 31 * h + args.hashCode();
+            h = 31 * h + (respClass != null ? respClass.hashCode() : 0);
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash
+                && src.equals(k.src)
+                && dst.equals(k.dst)
+                && cmd.equals(k.cmd)
+                && args.equals(k.args)
+                && respClass == k.respClass;
+        }
+    }
+
+    private final ConcurrentMap<Key, CoalescedCall<?>> calls;
+    private final Key key;
+
+    /*
+     * Listeners of the calls; the list is never modified, a new one is set
+     * instead. Null means that the call is closed, and can't be joined.
+     */
+    private final AtomicReference<List<CmdListener<R>>> listeners;
+
+    /*
+     * Id of the command; it's 0 until the command is registered, so a call
+     * which joins (and is cancelled) at that very moment can't cancel the
+     * command, and just gets ignored notification
+     */
+    private volatile int cmdId = 0;
+
+    /**
+     * @param calls
+     *      Map of the calls in flight; the call removes itself from the map
+     *      once it's closed.
+     */
+    CoalescedCall(
+            ConcurrentMap<Key, CoalescedCall<?>> calls,
+            Key key,
+            CmdListener<R> listener
+            ) {
+        this.calls = calls;
+        this.key = key;
+        this.listeners = new AtomicReference<List<CmdListener<R>>>(
+                Collections.singletonList(listener)
+                );
+    }
+
+    void setCmdId(int cmdId) {
+        this.cmdId = cmdId;
+    }
+
+    int getCmdId() {
+        return cmdId;
+    }
+
+    /**
+     * Adds listener of the identical call; returns false if the call is
+     * closed already.
+     */
+    boolean join(CmdListener<R> listener) {
+        for (;;) {
+            List<CmdListener<R>> cur = listeners.get();
+            if (cur == null) {
+                return false;
+            }
+            List<CmdListener<R>> next = new ArrayList<CmdListener<R>>(cur.size() + 1);
+            next.addAll(cur);
+            next.add(listener);
+            if (listeners.compareAndSet(cur, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes listener of the cancelled call; returns true if it was the last
+     * one, in which case the call is closed, and the command should be
+     * cancelled.
+     */
+    boolean leave(CmdListener<?> listener) {
+        for (;;) {
+            List<CmdListener<R>> cur = listeners.get();
+            if (cur == null || !cur.contains(listener)) {
+                return false;
+            }
+            if (cur.size() == 1) {
+                if (listeners.compareAndSet(cur, null)) {
+                    calls.remove(key, this);
+                    return true;
+                }
+                continue;
+            }
+            List<CmdListener<R>> next = new ArrayList<CmdListener<R>>(cur);
+            next.remove(listener);
+            if (listeners.compareAndSet(cur, next)) {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public void onResponse(R response) {
+        List<CmdListener<R>> list = close();
+        RuntimeException error = null;
+        for (CmdListener<R> listener : list) {
+            try {
+                listener.onResponse(response);
+            } catch (RuntimeException e) {
+                // Other listeners should be notified anyway
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void onError(int status, String statusMsg) {
+        List<CmdListener<R>> list = close();
+        RuntimeException error = null;
+        for (CmdListener<R> listener : list) {
+            try {
+                listener.onError(status, statusMsg);
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private List<CmdListener<R>> close() {
+        calls.remove(key, this);
+        List<CmdListener<R>> ret = listeners.getAndSet(null);
+        if (ret == null) {
+            ret = Collections.emptyList();
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-destination limit of the commands in flight, i.e. sent but not yet
+ * responded to.
+ *
+ * Each command takes a permit before it's sent, and gives it back once it's
+ * done (responded, failed, timed out or cancelled). When the window of the
+ * destination is full, the command waits in the queue of the destination
+ * (if there is room), or is rejected.
+ *
+ * The window is either fixed, or adaptive (AIMD): it grows by one per window
+ * of successful responses, up to the configured limit, and shrinks by a
+ * factor when a command times out, or when the response latency goes well
+ * above the lowest latency observed for the destination.
+ *
+ * The state of a destination is dropped once it has no permits (neither
+ * waiting nor in flight), so that talking to many destinations doesn't grow
+ * the limiter; the adaptive window of the destination starts over then.
+ *
+ * Commands let go by a released permit are sent by the executor, rather than
+ * by the thread which released the permit (e.g. the websocket reader).
+ */
+final class ConcurrencyLimiter {
+
+    /* Latency above `SLOW_FACTOR * minLatency` is a sign of overload */
+    private static final long SLOW_FACTOR = 2;
+    private static final double SLOW_DECREASE = 0.9;
+    private static final double TIMEOUT_DECREASE = 0.5;
+
+    private static final int ST_WAITING = 0;
+    private static final int ST_ACQUIRED = 1;
+    private static final int ST_RELEASED = 2;
+
+    private final ConcurrentMap<String, DstLimit> limits =
+        new ConcurrentHashMap<String, DstLimit>();
+
+    private final CallbackExecutor executor;
+
+    /**
+     * @param executor
+     *      Executor of the commands let go by a released permit.
+     */
+    ConcurrencyLimiter(CallbackExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Permit of a single command.
+     */
+    final class Permit {
+        private final DstLimit dstLimit;
+        private final Runnable task;
+
+        /* Fields below are guarded by the lock of the destination */
+        private int state = ST_WAITING;
+        private long startNanos;
+
+        private Permit(DstLimit dstLimit, Runnable task) {
+            this.dstLimit = dstLimit;
+            this.task = task;
+        }
+
+        /**
+         * Gives the permit back; if the command is still waiting, it's just
+         * removed from the queue (and never sent).
+         *
+         * @param status
+         *      Status of the command: 0 for success, or the error status;
+         *      only the success and the timeout affect the adaptive window.
+         */
+        void release(int status) {
+            dstLimit.release(this, true, status);
+        }
+
+        /**
+         * Gives the permit back without affecting the adaptive window; used
+         * for the cancelled commands.
+         */
+        void release() {
+            dstLimit.release(this, false, 0);
+        }
+    }
+
+    /**
+     * Creates a permit for the command to the given destination; it has to
+     * be acquired then.
+     *
+     * @param task
+     *      Task which actually sends the command; it's run once the permit is
+     *      acquired.
+     */
+    Permit createPermit(String dst, Runnable task) {
+        for (;;) {
+            DstLimit dstLimit = limits.get(dst);
+            if (dstLimit == null) {
+                dstLimit = new DstLimit(dst);
+                DstLimit prev = limits.putIfAbsent(dst, dstLimit);
+                if (prev != null) {
+                    dstLimit = prev;
+                }
+            }
+
+            dstLimit.lock.lock();
+            try {
+                if (dstLimit.removed) {
+                    // Has just been dropped by the last permit, try again
+                    continue;
+                }
+                dstLimit.permits++;
+            } finally {
+                dstLimit.lock.unlock();
+            }
+            return new Permit(dstLimit, task);
+        }
+    }
+
+    /**
+     * Returns number of destinations the limiter keeps the state of.
+     */
+    int getDstCount() {
+        return limits.size();
+    }
+
+    /**
+     * Acquires the permit: if the window of the destination is not full, the
+     * task is run right away; otherwise, the permit waits in the queue of the
+     * destination, and the task is run when some other permit is released.
+     *
+     * @param maxInFlight
+     *      Max number of commands in flight to the destination.
+     * @param adaptive
+     *      Whether the window should adapt to the destination latency.
+     * @param maxWaiting
+     *      Max number of commands waiting for a permit.
+     *
+     * @return
+     *      False if the command is rejected, because the queue is full as
+     *      well.
+     */
+    boolean acquire(
+            Permit permit,
+            int maxInFlight,
+            boolean adaptive,
+            int maxWaiting
+            ) {
+        DstLimit dstLimit = permit.dstLimit;
+        boolean acquired;
+
+        dstLimit.lock.lock();
+        try {
+            if (permit.state != ST_WAITING) {
+                // Released already (e.g. the command has timed out)
+                return true;
+            }
+
+            dstLimit.configure(maxInFlight, adaptive);
+
+            if (dstLimit.inFlight < dstLimit.getWindow()
+                    && dstLimit.waiting.isEmpty()) {
+                dstLimit.start(permit);
+                acquired = true;
+            } else if (dstLimit.waiting.size() < maxWaiting) {
+                dstLimit.waiting.addLast(permit);
+                acquired = false;
+            } else {
+                dstLimit.drop(permit);
+                return false;
+            }
+        } finally {
+            dstLimit.lock.unlock();
+        }
+
+        if (acquired) {
+            permit.task.run();
+        }
+        return true;
+    }
+
+    private final class DstLimit {
+
+        private final String dst;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /* Fields below are guarded by the lock */
+        private final ArrayDeque<Permit> waiting = new ArrayDeque<Permit>();
+        private int permits = 0;
+        private boolean removed = false;
+        private int inFlight = 0;
+        private int maxInFlight = 0;
+        private boolean adaptive = false;
+        private double limit = 0;
+        private long minLatencyNanos = Long.MAX_VALUE;
+
+        DstLimit(String dst) {
+            this.dst = dst;
+        }
+
+        /**
+         * Applies limits of the command being added; the adaptive window
+         * starts from the max one.
+         */
+        void configure(int maxInFlight, boolean adaptive) {
+            if (limit == 0 || limit > maxInFlight) {
+                limit = maxInFlight;
+            }
+            this.maxInFlight = maxInFlight;
+            this.adaptive = adaptive;
+        }
+
+        int getWindow() {
+            if (!adaptive) {
+                return maxInFlight;
+            }
+            return Math.max(1, (int) limit);
+        }
+
+        void start(Permit permit) {
+            permit.state = ST_ACQUIRED;
+            permit.startNanos = System.nanoTime();
+            inFlight++;
+        }
+
+        /**
+         * Marks the permit released, and drops the state of the destination
+         * if it was the last permit; should be called under the lock.
+         */
+        void drop(Permit permit) {
+            permit.state = ST_RELEASED;
+            if (--permits == 0) {
+                removed = true;
+                limits.remove(dst, this);
+            }
+        }
+
+        void release(Permit permit, boolean done, int status) {
+            List<Permit> toRun = null;
+
+            lock.lock();
+            try {
+                int prevState = permit.state;
+                if (prevState == ST_RELEASED) {
+                    return;
+                }
+                drop(permit);
+
+                if (prevState == ST_WAITING) {
+                    // Never sent, so just forget it
+                    waiting.remove(permit);
+                    return;
+                }
+
+                inFlight--;
+                if (adaptive && done) {
+                    adapt(System.nanoTime() - permit.startNanos, status);
+                }
+
+                //-- let the waiting commands go
+                while (inFlight < getWindow() && !waiting.isEmpty()) {
+                    Permit next = waiting.pollFirst();
+                    if (next.state != ST_WAITING) {
+                        continue;
+                    }
+                    start(next);
+                    if (toRun == null) {
+                        toRun = new ArrayList<Permit>();
+                    }
+                    toRun.add(next);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (toRun != null) {
+                for (Permit p : toRun) {
+                    executor.execute(dst, p.task);
+                }
+            }
+        }
+
+        private void adapt(long latencyNanos, int status) {
+            if (status == ClubbyStatus.TIMEOUT) {
+                limit = Math.max(1, limit * TIMEOUT_DECREASE);
+                return;
+            }
+            if (status != 0) {
+                // Failure of the command itself, nothing to learn from it
+                return;
+            }
+
+            if (latencyNanos < minLatencyNanos) {
+                minLatencyNanos = latencyNanos;
+            }
+
+            if (latencyNanos > minLatencyNanos * SLOW_FACTOR) {
+                limit = Math.max(1, limit * SLOW_DECREASE);
+                // Let the baseline follow the persistent changes of latency
+                minLatencyNanos += (latencyNanos - minLatencyNanos) / 16;
+            } else {
+                limit = Math.min(maxInFlight, limit + 1 / limit);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory for the internal threads of the library: they are daemon
+ * ones, so that they don't keep the application running.
+ */
+final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String name;
+    private final AtomicInteger cnt = new AtomicInteger(0);
+
+    DaemonThreadFactory(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name + "-" + cnt.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+}
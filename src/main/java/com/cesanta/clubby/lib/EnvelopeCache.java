@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.cesanta.clubby.lib.Clubby.JsonCmd;
+import com.cesanta.clubby.lib.Clubby.JsonFrame;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.JsonMappingException;
+
+/**
+ * LRU cache of pre-encoded frame envelopes, keyed by source and destination.
+ *
+ * Everything in a command frame but the `cmds` array (`v`, `src`, `dst` and
+ * `key`) is the same for all the frames from the identity to the
+ * destination, so it's encoded
+ * once: the envelope is split into the prefix (up to the value of `cmds`)
+ * and the suffix (after it). Then, only the `cmds` array is encoded per
+ * frame, right into the buffer after the prefix, followed by the suffix.
+ *
+ * Prefix and suffix are found by encoding the envelope with an empty `cmds`
+ * array, which relies on `cmds` being the last field of the frame; that
+ * works for any codec, as long as an array is encoded the same way on its
+ * own and as a field value.
+ */
+final class EnvelopeCache {
+
+    private static final class Envelope {
+        final FrameCodec codec;
+        final int v;
+        final String src;
+        final String dst;
+        final String key;
+        final byte[] prefix;
+        final byte[] suffix;
+
+        /*
+         * Size of the last frame encoded with the envelope; the buffer for
+         * the next one is allocated of that size, so that it doesn't have to
+         * grow
+         */
+        volatile int lastSize;
+
+        Envelope(FrameCodec codec, JsonFrame frame, byte[] prefix, byte[] suffix) {
+            this.codec = codec;
+            this.v = frame.v;
+            this.src = frame.src;
+            this.dst = frame.dst;
+            this.key = frame.key;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.lastSize = prefix.length + suffix.length + CMDS_SIZE_HINT;
+        }
+
+        /**
+         * Returns whether the envelope is the one of the frame; the route
+         * is compared as well, since the cache key can be ambiguous.
+         */
+        boolean matches(FrameCodec codec, JsonFrame frame) {
+            return this.codec == codec
+                && v == frame.v
+                && Objects.equals(src, frame.src)
+                && Objects.equals(dst, frame.dst)
+                && Objects.equals(key, frame.key);
+        }
+    }
+
+    /* Initial room for the encoded cmds in the frame buffer */
+    private static final int CMDS_SIZE_HINT = 256;
+
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /* Guarded by the lock */
+    private final LinkedHashMap<String, Envelope> envelopes;
+
+    /**
+     * @param capacity
+     *      Max number of source and destination pairs to keep envelopes for;
+     *      0 disables the cache.
+     */
+    EnvelopeCache(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("illegal capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.envelopes = new LinkedHashMap<String, Envelope>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Envelope> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Encodes the frame with the given codec, using the cached envelope if
+     * possible. Frames which are not command frames are encoded as a whole.
+     */
+    byte[] encode(FrameCodec codec, JsonFrame frame) throws JsonProcessingException {
+        if (capacity == 0 || frame.cmds == null || frame.resp != null) {
+            return codec.encode(frame);
+        }
+
+        Envelope envelope = getEnvelope(codec, frame);
+        if (envelope == null) {
+            return codec.encode(frame);
+        }
+
+        //-- encode cmds right after the prefix, into the same buffer
+        ByteArrayBuilder out = new ByteArrayBuilder(envelope.lastSize);
+        out.write(envelope.prefix);
+        try {
+            codec.getMapper().writeValue(out, frame.cmds);
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            // Not expected from the in-memory buffer
+            throw JsonMappingException.fromUnexpectedIOE(e);
+        }
+        out.write(envelope.suffix);
+
+        byte[] ret = out.toByteArray();
+        envelope.lastSize = ret.length;
+        return ret;
+    }
+
+    /**
+     * Returns envelope for the frame, creating it if needed; returns null if
+     * the envelope of the codec can't be split.
+     */
+    private Envelope getEnvelope(FrameCodec codec, JsonFrame frame)
+        throws JsonProcessingException {
+
+        String route = frame.src + ' ' + frame.dst;
+
+        lock.lock();
+        try {
+            Envelope envelope = envelopes.get(route);
+            if (envelope != null && envelope.matches(codec, frame)) {
+                return envelope;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        //-- encode the envelope with empty cmds, and find where cmds are
+        JsonFrame template = new JsonFrame();
+        template.v = frame.v;
+        template.src = frame.src;
+        template.dst = frame.dst;
+        template.key = frame.key;
+        template.cmds = Collections.<JsonCmd>emptyList();
+
+        byte[] whole = codec.encode(template);
+        byte[] emptyCmds = codec.getMapper().writeValueAsBytes(template.cmds);
+
+        int idx = lastIndexOf(whole, emptyCmds);
+        if (idx < 0) {
+            return null;
+        }
+
+        byte[] prefix = new byte[idx];
+        System.arraycopy(whole, 0, prefix, 0, idx);
+        int suffixStart = idx + emptyCmds.length;
+        byte[] suffix = new byte[whole.length - suffixStart];
+        System.arraycopy(whole, suffixStart, suffix, 0, suffix.length);
+
+        Envelope envelope = new Envelope(codec, frame, prefix, suffix);
+
+        lock.lock();
+        try {
+            envelopes.put(route, envelope);
+        } finally {
+            lock.unlock();
+        }
+
+        return envelope;
+    }
+
+    private static int lastIndexOf(byte[] data, byte[] sub) {
+        for (int i = data.length - sub.length; i >= 0; i--) {
+            int j = 0;
+            while (j < sub.length && data[i + j] == sub[j]) {
+                j++;
+            }
+            if (j == sub.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
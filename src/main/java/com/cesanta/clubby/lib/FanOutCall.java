@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Aggregate of the commands sent by {@link
+ * Clubby#callMany(java.util.Collection, String, Object, Class, FanOutPolicy,
+ * ClubbyOptions) Clubby.callMany()}; it's the future returned to the caller.
+ *
+ * Each destination has a small listener which records the outcome into the
+ * per-destination arrays; there is a single deadline for the whole call
+ * instead of per-command timeouts. Once the call is complete (or cancelled),
+ * the commands still pending are forgotten.
+ */
+final class FanOutCall<R> extends CompletableFuture<FanOutResult<R>> {
+
+    private static final int ST_PENDING = 0;
+    private static final int ST_OK = 1;
+    private static final int ST_FAILED = 2;
+
+    private final Clubby clubby;
+    private final Clubby.Identity identity;
+    private final List<String> dsts;
+    private final int required;
+    private final boolean stopEarly;
+    private final List<CmdListener<R>> members;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /* Fields below are guarded by the lock */
+    private final int[] cmdIds;
+    private final int[] states;
+    private final Object[] resps;
+    private final int[] statuses;
+    private final String[] statusMsgs;
+    private int succeeded = 0;
+    private int failed = 0;
+    private boolean finished = false;
+
+    private volatile TimeoutWheel.Timeout deadline = null;
+
+    FanOutCall(
+            Clubby clubby,
+            Clubby.Identity identity,
+            List<String> dsts,
+            FanOutPolicy policy
+            ) {
+        this.clubby = clubby;
+        this.identity = identity;
+        this.dsts = dsts;
+        this.required = policy.getRequired(dsts.size());
+        this.stopEarly = policy.isStopEarly();
+
+        int n = dsts.size();
+        cmdIds = new int[n];
+        states = new int[n];
+        resps = new Object[n];
+        statuses = new int[n];
+        statusMsgs = new String[n];
+
+        members = new ArrayList<CmdListener<R>>(n);
+        for (int i = 0; i < n; i++) {
+            members.add(new Member(i));
+        }
+    }
+
+    /**
+     * Returns listener of the command to the destination with the given
+     * index.
+     */
+    CmdListener<R> getMember(int idx) {
+        return members.get(idx);
+    }
+
+    /**
+     * Sets id of the command sent to the destination with the given index;
+     * if the call is complete already, the command is forgotten right away.
+     */
+    void setCmdId(int idx, int cmdId) {
+        boolean forget;
+        lock.lock();
+        try {
+            cmdIds[idx] = cmdId;
+            forget = finished && states[idx] == ST_PENDING;
+        } finally {
+            lock.unlock();
+        }
+        if (forget) {
+            clubby.cancelCmd(identity, cmdId, members.get(idx));
+        }
+    }
+
+    void setDeadline(TimeoutWheel.Timeout deadline) {
+        this.deadline = deadline;
+        if (isDone()) {
+            deadline.cancel();
+        }
+    }
+
+    /**
+     * Called at the deadline: the call is complete with whatever has been
+     * received.
+     */
+    void onDeadline() {
+        finish(true);
+    }
+
+    /**
+     * Called when everything has been sent: completes the call with no
+     * destinations, or with the outcome of the commands which have failed
+     * without being sent.
+     */
+    void onSent() {
+        boolean done;
+        lock.lock();
+        try {
+            done = isComplete();
+        } finally {
+            lock.unlock();
+        }
+        if (done) {
+            finish(true);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean ret = super.cancel(mayInterruptIfRunning);
+        if (ret) {
+            finish(false);
+        }
+        return ret;
+    }
+
+    private void onOutcome(int idx, Object resp, int status, String statusMsg) {
+        boolean done;
+        lock.lock();
+        try {
+            if (finished || states[idx] != ST_PENDING) {
+                return;
+            }
+            if (status == 0) {
+                states[idx] = ST_OK;
+                resps[idx] = resp;
+                succeeded++;
+            } else {
+                states[idx] = ST_FAILED;
+                statuses[idx] = status;
+                statusMsgs[idx] = statusMsg;
+                failed++;
+            }
+            done = isComplete();
+        } finally {
+            lock.unlock();
+        }
+        if (done) {
+            finish(true);
+        }
+    }
+
+    /* Should be called with the lock held */
+    private boolean isComplete() {
+        if (succeeded + failed == states.length) {
+            return true;
+        }
+        if (!stopEarly) {
+            return false;
+        }
+        return succeeded >= required
+            || states.length - failed < required;
+    }
+
+    /**
+     * Completes the call (unless it's complete already), and forgets the
+     * commands which are still pending.
+     */
+    private void finish(boolean complete) {
+        FanOutResult<R> result;
+        List<Integer> toForget = new ArrayList<Integer>();
+        List<Integer> toForgetIds = new ArrayList<Integer>();
+
+        lock.lock();
+        try {
+            if (finished) {
+                return;
+            }
+            finished = true;
+
+            Map<String, R> responses = new LinkedHashMap<String, R>();
+            Map<String, ClubbyException> errors =
+                new LinkedHashMap<String, ClubbyException>();
+            List<String> pending = new ArrayList<String>();
+
+            for (int i = 0; i < states.length; i++) {
+                String dst = dsts.get(i);
+                switch (states[i]) {
+                    case ST_OK:
+                        @SuppressWarnings("unchecked")
+                        R resp = (R) resps[i];
+                        responses.put(dst, resp);
+                        break;
+                    case ST_FAILED:
+                        errors.put(dst, new ClubbyException(statuses[i], statusMsgs[i]));
+                        break;
+                    default:
+                        pending.add(dst);
+                        if (cmdIds[i] != 0) {
+                            toForget.add(i);
+                            toForgetIds.add(cmdIds[i]);
+                        }
+                        break;
+                }
+            }
+
+            result = new FanOutResult<R>(
+                    succeeded >= required, responses, errors, pending
+                    );
+        } finally {
+            lock.unlock();
+        }
+
+        TimeoutWheel.Timeout curDeadline = deadline;
+        if (curDeadline != null) {
+            curDeadline.cancel();
+        }
+
+        for (int i = 0; i < toForget.size(); i++) {
+            clubby.cancelCmd(identity, toForgetIds.get(i), members.get(toForget.get(i)));
+        }
+
+        if (complete) {
+            complete(result);
+        }
+    }
+
+    private final class Member implements CmdListener<R> {
+        private final int idx;
+
+        Member(int idx) {
+            this.idx = idx;
+        }
+
+        @Override
+        public void onResponse(R response) {
+            onOutcome(idx, response, 0, null);
+        }
+
+        @Override
+        public void onError(int status, String statusMsg) {
+            onOutcome(idx, null, status, statusMsg);
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+/**
+ * When the fan-out call is complete, see {@link
+ * Clubby#callMany(java.util.Collection, String, Object, Class, FanOutPolicy,
+ * ClubbyOptions) Clubby.callMany()}.
+ *
+ * The policy sets the number of successful responses the call needs. Once
+ * it's reached (or can't be reached any more, since too many destinations
+ * have failed), the call is complete, and the commands still pending are
+ * forgotten; {@link #all()} waits for every destination instead. In any
+ * case, the call is complete at the deadline set by the timeout (or the
+ * deadline) of the options.
+ */
+public final class FanOutPolicy {
+
+    private static final FanOutPolicy ALL = new FanOutPolicy(0, false, false);
+    private static final FanOutPolicy QUORUM = new FanOutPolicy(0, true, true);
+
+    private final int count;
+    private final boolean majority;
+    private final boolean stopEarly;
+
+    private FanOutPolicy(int count, boolean majority, boolean stopEarly) {
+        this.count = count;
+        this.majority = majority;
+        this.stopEarly = stopEarly;
+    }
+
+    /**
+     * Wait for all the destinations to respond (or fail), or for the
+     * deadline; satisfied if all of them have responded successfully.
+     */
+    public static FanOutPolicy all() {
+        return ALL;
+    }
+
+    /**
+     * Complete once the majority of the destinations have responded
+     * successfully.
+     */
+    public static FanOutPolicy quorum() {
+        return QUORUM;
+    }
+
+    /**
+     * Complete once the first `n` destinations have responded successfully
+     * (or all of them, if there are fewer).
+     */
+    public static FanOutPolicy first(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("illegal number of responses: " + n);
+        }
+        return new FanOutPolicy(n, false, true);
+    }
+
+    /**
+     * Returns number of successful responses needed out of `total`.
+     */
+    int getRequired(int total) {
+        if (majority) {
+            return total / 2 + 1;
+        }
+        if (count == 0) {
+            return total;
+        }
+        return Math.min(count, total);
+    }
+
+    /**
+     * Returns whether the call should be complete as soon as the number of
+     * responses is reached (or can't be reached).
+     */
+    boolean isStopEarly() {
+        return stopEarly;
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of the fan-out call, see {@link Clubby#callMany(java.util.Collection,
+ * String, Object, Class, FanOutPolicy, ClubbyOptions) Clubby.callMany()}:
+ * per-destination responses and errors, as of the moment the call was
+ * complete.
+ */
+public final class FanOutResult<R> {
+
+    private final boolean satisfied;
+    private final Map<String, R> responses;
+    private final Map<String, ClubbyException> errors;
+    private final List<String> pending;
+
+    FanOutResult(
+            boolean satisfied,
+            Map<String, R> responses,
+            Map<String, ClubbyException> errors,
+            List<String> pending
+            ) {
+        this.satisfied = satisfied;
+        this.responses = Collections.unmodifiableMap(responses);
+        this.errors = Collections.unmodifiableMap(errors);
+        this.pending = Collections.unmodifiableList(pending);
+    }
+
+    /**
+     * Returns whether the number of successful responses required by the
+     * {@link FanOutPolicy} was reached.
+     */
+    public boolean isSatisfied() {
+        return satisfied;
+    }
+
+    /**
+     * Returns successful responses, keyed by destination, in the order of
+     * destinations.
+     */
+    public Map<String, R> getResponses() {
+        return responses;
+    }
+
+    /**
+     * Returns failures, keyed by destination; each exception carries status
+     * and status message.
+     */
+    public Map<String, ClubbyException> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns destinations which haven't responded by the time the call was
+     * complete; their responses are ignored.
+     */
+    public List<String> getPending() {
+        return pending;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects outgoing items (commands or responses) to the same destination,
+ * so that they are sent in a single frame.
+ *
+ * A batch is sent either by the thread which adds the item filling the
+ * batch up, or by the linger timer, which is started when the first item
+ * is added to the batch.
+ */
+final class FrameBatcher<T> {
+
+    /**
+     * Actually sends the items collected for the destination.
+     */
+    interface Sender<T> {
+        void send(String dst, List<T> items);
+    }
+
+    private final Sender<T> sender;
+
+    private final ConcurrentMap<String, Batch> batches =
+        new ConcurrentHashMap<String, Batch>();
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param scheduler
+     *      Scheduler for the linger timers.
+     */
+    FrameBatcher(Sender<T> sender, ScheduledExecutorService scheduler) {
+        this.sender = sender;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Add item to the batch of the given destination.
+     *
+     * @param maxSize
+     *      Max number of items in the batch; once reached, the batch is
+     *      sent by the calling thread.
+     * @param lingerMicros
+     *      Max time for the item to wait in the batch.
+     */
+    void add(String dst, T item, int maxSize, long lingerMicros) {
+        for (;;) {
+            Batch batch = batches.get(dst);
+            if (batch == null) {
+                batch = new Batch(dst);
+                Batch prev = batches.putIfAbsent(dst, batch);
+                if (prev != null) {
+                    batch = prev;
+                }
+            }
+
+            List<T> toSend;
+            batch.lock.lock();
+            try {
+                if (batch.closed) {
+                    // Batch has just been removed by the linger timer
+                    continue;
+                }
+
+                batch.items.add(item);
+                if (batch.items.size() < maxSize) {
+                    if (batch.lingerFuture == null) {
+                        batch.lingerFuture = scheduler.schedule(
+                                batch, lingerMicros, TimeUnit.MICROSECONDS
+                                );
+                    }
+                    return;
+                }
+
+                toSend = batch.takeItems();
+            } finally {
+                batch.lock.unlock();
+            }
+
+            sender.send(dst, toSend);
+            return;
+        }
+    }
+
+    private final class Batch implements Runnable {
+        private final String dst;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /* Fields below are guarded by the lock */
+        private List<T> items = new ArrayList<T>();
+        private Future<?> lingerFuture = null;
+        private boolean closed = false;
+
+        Batch(String dst) {
+            this.dst = dst;
+        }
+
+        List<T> takeItems() {
+            List<T> ret = items;
+            items = new ArrayList<T>();
+            if (lingerFuture != null) {
+                lingerFuture.cancel(false);
+                lingerFuture = null;
+            }
+            return ret;
+        }
+
+        /**
+         * Called by the linger timer: sends whatever is collected, and
+         * removes the batch, so that batches of idle destinations don't pile
+         * up.
+         */
+        @Override
+        public void run() {
+            List<T> toSend;
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                lingerFuture = null;
+                toSend = items;
+                items = null;
+                closed = true;
+                batches.remove(dst, this);
+            } finally {
+                lock.unlock();
+            }
+
+            if (!toSend.isEmpty()) {
+                sender.send(dst, toSend);
+            }
+        }
+    }
+
+}
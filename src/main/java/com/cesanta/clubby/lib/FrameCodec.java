@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.cesanta.clubby.lib.Clubby.JsonFrame;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.neovisionaries.ws.client.WebSocketExtension;
+
+/**
+ * Wire encoding of Clubby frames.
+ *
+ * Frames are the same Jackson-mapped objects whatever the encoding is; the
+ * codec only holds the mapper built on top of the Jackson factory of the
+ * encoding (e.g. `JsonFactory` or `CBORFactory`). Encodings which Jackson
+ * reports as binary go over binary websocket messages, the rest go over text
+ * ones.
+ *
+ * Frames are encoded right into UTF-8 (or binary) bytes: Jackson writes into
+ * its own recycled buffers, so the only copy is the final payload array,
+ * which is handed over to the websocket as is.
+ *
+ * The encoding is negotiated by means of the websocket extension
+ * `clubby.cesanta.com-encoding`: the client offers `in` and `out` encodings,
+ * and the server agrees on the ones it supports.
+ */
+final class FrameCodec {
+
+    static final String EXTENSION = "clubby.cesanta.com-encoding";
+
+    static final String JSON = "json";
+
+    /* Mapper to convert binary frames into JSON text for the listeners */
+    private static final ObjectMapper TEXT_MAPPER = new ObjectMapper();
+
+    private final String name;
+    private final ObjectMapper mapper;
+    private final boolean binary;
+
+    FrameCodec(String name, JsonFactory factory) {
+        this.name = name;
+        this.mapper = new ObjectMapper(factory)
+            .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+        this.binary = factory.canHandleBinaryNatively();
+    }
+
+    static FrameCodec createJson() {
+        return new FrameCodec(JSON, new JsonFactory());
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns whether frames should be sent as binary websocket messages.
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * Returns extension header value offering this encoding in both
+     * directions.
+     */
+    String getExtensionOffer() {
+        return EXTENSION + "; in=" + name + "; out=" + name;
+    }
+
+    /**
+     * Encodes the frame into the payload of a websocket message; for text
+     * encodings, it's UTF-8 text.
+     */
+    byte[] encode(JsonFrame frame) throws JsonProcessingException {
+        return mapper.writeValueAsBytes(frame);
+    }
+
+    /**
+     * Returns parser of the incoming text frame, see {@link FrameDecoder}.
+     */
+    JsonParser createParser(String text) throws IOException {
+        return mapper.getFactory().createParser(text);
+    }
+
+    JsonParser createParser(byte[] data) throws IOException {
+        return mapper.getFactory().createParser(data);
+    }
+
+    /**
+     * Returns the payload as JSON text, for the listeners of the raw data:
+     * text payloads are just decoded, binary ones are converted into JSON.
+     */
+    String toText(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        if (!binary) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+        try {
+            return TEXT_MAPPER.writeValueAsString(mapper.readTree(data));
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Returns the codec to send frames with, given the extensions agreed by
+     * the server: the preferred one if the server accepts it as an input
+     * encoding, JSON otherwise.
+     */
+    static FrameCodec negotiate(
+            List<WebSocketExtension> agreed,
+            FrameCodec preferred,
+            FrameCodec json
+            ) {
+        if (agreed != null) {
+            for (WebSocketExtension ext : agreed) {
+                if (EXTENSION.equals(ext.getName())
+                        && preferred.name.equals(ext.getParameter("in"))) {
+                    return preferred;
+                }
+            }
+        }
+        return json;
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressor of the outgoing payloads for the `permessage-deflate` websocket
+ * extension (RFC 7692).
+ *
+ * Each message is compressed on its own (no context takeover), so that
+ * messages can be compressed concurrently by the calling threads; deflaters
+ * are pooled, since creating one is rather expensive.
+ *
+ * The websocket compresses each frame which isn't marked as compressed
+ * already (with the default level), so every payload is compressed here and
+ * marked, even if it doesn't get any smaller: otherwise the websocket would
+ * deflate it once again, and send it uncounted.
+ */
+final class FrameCompressor {
+
+    static final String EXTENSION = "permessage-deflate";
+
+    /* Tail of the sync flush, which is stripped off the message */
+    private static final byte[] TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+    private final int level;
+
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+    private final AtomicLong bytesBefore = new AtomicLong(0);
+    private final AtomicLong bytesAfter = new AtomicLong(0);
+
+    /**
+     * @param level
+     *      Deflate compression level, 0-9, or -1 for the default one.
+     */
+    FrameCompressor(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("illegal compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * Returns compressed payload; it may be a few bytes larger than the
+     * original one, if the latter doesn't compress.
+     */
+    byte[] compress(byte[] payload) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+
+        byte[] ret;
+        try {
+            deflater.setInput(payload);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + 16);
+            byte[] buf = new byte[Math.min(payload.length + 16, 8192)];
+            int len;
+            do {
+                len = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                out.write(buf, 0, len);
+            } while (len == buf.length);
+
+            ret = out.toByteArray();
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+
+        //-- strip the tail, as required by the extension
+        int len = ret.length;
+        if (endsWithTail(ret)) {
+            len -= TAIL.length;
+        }
+
+        bytesBefore.addAndGet(payload.length);
+        bytesAfter.addAndGet(len);
+
+        byte[] stripped = new byte[len];
+        System.arraycopy(ret, 0, stripped, 0, len);
+        return stripped;
+    }
+
+    /**
+     * Decompresses the payload compressed by {@link #compress(byte[])
+     * compress()}; used to show the outgoing data to the listeners.
+     */
+    static byte[] decompress(byte[] payload) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            byte[] input = new byte[payload.length + TAIL.length];
+            System.arraycopy(payload, 0, input, 0, payload.length);
+            System.arraycopy(TAIL, 0, input, payload.length, TAIL.length);
+            inflater.setInput(input);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 2);
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = inflater.inflate(buf)) > 0) {
+                out.write(buf, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns total size of the payloads passed to the compressor.
+     */
+    long getBytesBefore() {
+        return bytesBefore.get();
+    }
+
+    /**
+     * Returns total size of the same payloads as sent, i.e. compressed.
+     */
+    long getBytesAfter() {
+        return bytesAfter.get();
+    }
+
+    private static boolean endsWithTail(byte[] data) {
+        if (data.length < TAIL.length) {
+            return false;
+        }
+        for (int i = 0; i < TAIL.length; i++) {
+            if (data[data.length - TAIL.length + i] != TAIL[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
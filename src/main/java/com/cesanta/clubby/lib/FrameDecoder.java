@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Streaming decoder of the incoming frames.
+ *
+ * The frame is walked token by token, and each element of `resp` is handed
+ * over to the handler as soon as the element is parsed, so the whole frame is
+ * never materialized. Payloads of the responses nobody waits for (e.g. timed
+ * out ones) are skipped without being buffered.
+ *
+ * Responses and commands are routed by `dst` of the frame, which normally
+ * comes first; if `resp` comes before `dst`, the responses are buffered
+ * until the end of the frame. Incoming commands (`cmds`) are always collected
+ * and handed over at the end of the frame, since `src` they have to be
+ * responded to might come after them.
+ *
+ * Works with the parser of any codec, since it only relies on the Jackson
+ * token stream.
+ */
+final class FrameDecoder {
+
+    interface Handler {
+        /**
+         * Returns whether the response with the given id, addressed to
+         * `dst`, is still waited for; if not, its payload is skipped.
+         */
+        boolean isWanted(String dst, int id);
+
+        /**
+         * Called for each response of the frame; `resp` is null if the
+         * payload is absent, or was skipped.
+         */
+        void onResp(String dst, int id, int status, String statusMsg, TokenBuffer resp);
+
+        /**
+         * Called for the incoming commands of the frame, if any.
+         */
+        void onCmds(String src, String dst, List<Cmd> cmds);
+    }
+
+    /**
+     * Single incoming command; `args` is null if absent. The time left of the
+     * command is turned into the deadline as soon as it's decoded.
+     */
+    static final class Cmd {
+        String cmd = "";
+        int id = 0;
+        TokenBuffer args = null;
+
+        /* Deadline as per System.nanoTime(), if hasDeadline is true */
+        long deadline = 0;
+        boolean hasDeadline = false;
+
+        /**
+         * Returns whether the sender is no longer interested in the result.
+         */
+        boolean isExpired() {
+            return hasDeadline && deadline - System.nanoTime() <= 0;
+        }
+    }
+
+    private FrameDecoder() {
+    }
+
+    /**
+     * Decodes the frame from the given parser; the parser is closed
+     * afterwards.
+     */
+    static void decode(JsonParser p, Handler handler) throws IOException {
+        try {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(p, "Frame is not an object");
+            }
+
+            String src = "";
+            String dst = null;
+            List<Cmd> cmds = null;
+            TokenBuffer deferredResps = null;
+
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                JsonToken t = p.nextToken();
+
+                if ("resp".equals(name) && t == JsonToken.START_ARRAY) {
+                    if (dst != null) {
+                        decodeResps(p, dst, handler);
+                    } else {
+                        deferredResps = new TokenBuffer(p);
+                        deferredResps.copyCurrentStructure(p);
+                    }
+                } else if ("cmds".equals(name) && t == JsonToken.START_ARRAY) {
+                    cmds = new ArrayList<Cmd>();
+                    while (p.nextToken() == JsonToken.START_OBJECT) {
+                        cmds.add(decodeCmd(p));
+                    }
+                } else if ("src".equals(name)) {
+                    src = p.getValueAsString("");
+                } else if ("dst".equals(name)) {
+                    dst = p.getValueAsString("");
+                } else {
+                    p.skipChildren();
+                }
+            }
+
+            if (dst == null) {
+                dst = "";
+            }
+
+            if (deferredResps != null) {
+                JsonParser rp = deferredResps.asParser();
+                rp.nextToken();
+                decodeResps(rp, dst, handler);
+            }
+
+            if (cmds != null && !cmds.isEmpty()) {
+                handler.onCmds(src, dst, cmds);
+            }
+        } finally {
+            p.close();
+        }
+    }
+
+    /**
+     * Decodes array of responses; the parser should point at the start of the
+     * array.
+     */
+    private static void decodeResps(JsonParser p, String dst, Handler handler)
+        throws IOException {
+
+        while (p.nextToken() == JsonToken.START_OBJECT) {
+            decodeResp(p, dst, handler);
+        }
+    }
+
+    /**
+     * Decodes single response; the parser should point at the start of the
+     * response object.
+     */
+    private static void decodeResp(JsonParser p, String dst, Handler handler)
+        throws IOException {
+
+        int id = 0;
+        boolean idKnown = false;
+        boolean wanted = true;
+        int status = 0;
+        String statusMsg = "";
+        TokenBuffer resp = null;
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+
+            if ("id".equals(name)) {
+                id = p.getValueAsInt();
+                idKnown = true;
+                wanted = handler.isWanted(dst, id);
+                if (!wanted) {
+                    // Payload might have been buffered already
+                    resp = null;
+                }
+            } else if ("status".equals(name)) {
+                status = p.getValueAsInt();
+            } else if ("status_msg".equals(name)) {
+                statusMsg = p.getValueAsString("");
+            } else if ("resp".equals(name) && t != JsonToken.VALUE_NULL) {
+                // If the id is not known yet, the payload has to be buffered
+                // anyway
+                if (wanted || !idKnown) {
+                    resp = new TokenBuffer(p);
+                    resp.copyCurrentStructure(p);
+                } else {
+                    p.skipChildren();
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+
+        if (wanted) {
+            handler.onResp(dst, id, status, statusMsg, resp);
+        }
+    }
+
+    /**
+     * Decodes single command; the parser should point at the start of the
+     * command object.
+     */
+    private static Cmd decodeCmd(JsonParser p) throws IOException {
+        Cmd cmd = new Cmd();
+        long timeoutMillis = 0;
+        long timeoutSecs = 0;
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+
+            if ("cmd".equals(name)) {
+                cmd.cmd = p.getValueAsString("");
+            } else if ("id".equals(name)) {
+                cmd.id = p.getValueAsInt();
+            } else if ("args".equals(name) && t != JsonToken.VALUE_NULL) {
+                cmd.args = new TokenBuffer(p);
+                cmd.args.copyCurrentStructure(p);
+            } else if ("timeout_ms".equals(name)) {
+                timeoutMillis = p.getValueAsLong();
+            } else if ("timeout".equals(name)) {
+                timeoutSecs = p.getValueAsLong();
+            } else {
+                p.skipChildren();
+            }
+        }
+
+        // Older peers only send the timeout in seconds
+        if (timeoutMillis <= 0 && timeoutSecs > 0) {
+            timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSecs);
+        }
+        if (timeoutMillis > 0) {
+            cmd.deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            cmd.hasDeadline = true;
+        }
+
+        return cmd;
+    }
+
+}
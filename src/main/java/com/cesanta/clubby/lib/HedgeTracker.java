@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-destination statistics for the hedged calls, see {@link
+ * ClubbyOptions#hedgePercentile(double) ClubbyOptions.hedgePercentile()}.
+ *
+ * Latencies of the recent successful calls are kept in a ring buffer, and
+ * the requested percentile is recomputed once in a while, not on every call.
+ * Hedges are paid from a token bucket: each call earns `maxRate` of a token,
+ * and each hedge takes a whole one, so hedges can't exceed the given share
+ * of the calls (apart from a small burst).
+ *
+ * Statistics are kept for a bounded number of destinations, the least
+ * recently used ones are dropped.
+ */
+final class HedgeTracker {
+
+    /* Number of latencies kept per destination */
+    private static final int WINDOW = 256;
+
+    /* No hedges until that many latencies are known */
+    private static final int MIN_SAMPLES = 20;
+
+    /* Percentile is recomputed after that many new latencies */
+    private static final int RECOMPUTE_EVERY = 32;
+
+    /* Max number of hedges which can be fired in a row */
+    private static final double MAX_TOKENS = 10;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /* Guarded by the lock */
+    private final LinkedHashMap<String, DstStats> stats;
+
+    private final AtomicLong fired = new AtomicLong(0);
+    private final AtomicLong won = new AtomicLong(0);
+
+    /**
+     * @param capacity
+     *      Max number of destinations to keep statistics for.
+     */
+    HedgeTracker(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("illegal capacity: " + capacity);
+        }
+        this.stats = new LinkedHashMap<String, DstStats>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DstStats> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Called for each hedgeable call: earns the hedge budget, and returns
+     * delay after which the hedge should be sent, in nanoseconds, or -1 if
+     * there are not enough latencies known yet.
+     */
+    long onCall(String dst, double percentile, double maxRate) {
+        DstStats dstStats = getStats(dst);
+
+        dstStats.lock.lock();
+        try {
+            dstStats.tokens = Math.min(MAX_TOKENS, dstStats.tokens + maxRate);
+            return dstStats.getPercentile(percentile);
+        } finally {
+            dstStats.lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a token for the hedge; returns false if the budget is exhausted,
+     * so the hedge should not be sent.
+     */
+    boolean tryHedge(String dst) {
+        DstStats dstStats = getStats(dst);
+
+        dstStats.lock.lock();
+        try {
+            if (dstStats.tokens < 1) {
+                return false;
+            }
+            dstStats.tokens -= 1;
+        } finally {
+            dstStats.lock.unlock();
+        }
+
+        fired.incrementAndGet();
+        return true;
+    }
+
+    void onHedgeWon() {
+        won.incrementAndGet();
+    }
+
+    /**
+     * Records latency of the successful command.
+     */
+    void record(String dst, long latencyNanos) {
+        DstStats dstStats = getStats(dst);
+
+        dstStats.lock.lock();
+        try {
+            dstStats.latencies[dstStats.next] = latencyNanos;
+            dstStats.next = (dstStats.next + 1) % WINDOW;
+            if (dstStats.cnt < WINDOW) {
+                dstStats.cnt++;
+            }
+            dstStats.sinceRecompute++;
+        } finally {
+            dstStats.lock.unlock();
+        }
+    }
+
+    long getFired() {
+        return fired.get();
+    }
+
+    long getWon() {
+        return won.get();
+    }
+
+    /**
+     * Returns number of destinations the statistics are kept for.
+     */
+    int getDstCount() {
+        lock.lock();
+        try {
+            return stats.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns statistics of the destination, creating them if needed; the
+     * statistics may be dropped concurrently, which just loses the update.
+     */
+    private DstStats getStats(String dst) {
+        lock.lock();
+        try {
+            DstStats dstStats = stats.get(dst);
+            if (dstStats == null) {
+                dstStats = new DstStats();
+                stats.put(dst, dstStats);
+            }
+            return dstStats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class DstStats {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /* Fields below are guarded by the lock */
+        private final long[] latencies = new long[WINDOW];
+        private int next = 0;
+        private int cnt = 0;
+        private int sinceRecompute = 0;
+        private double tokens = 0;
+
+        private double cachedPercentile = -1;
+        private long cachedValue = -1;
+
+        long getPercentile(double percentile) {
+            if (cnt < MIN_SAMPLES) {
+                return -1;
+            }
+            if (percentile != cachedPercentile || sinceRecompute >= RECOMPUTE_EVERY) {
+                long[] sorted = Arrays.copyOf(latencies, cnt);
+                Arrays.sort(sorted);
+                int idx = (int) Math.ceil(percentile * cnt) - 1;
+                cachedValue = sorted[Math.max(0, Math.min(cnt - 1, idx))];
+                cachedPercentile = percentile;
+                sinceRecompute = 0;
+            }
+            return cachedValue;
+        }
+    }
+
+}
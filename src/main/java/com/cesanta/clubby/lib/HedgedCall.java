@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Call which might be hedged, see {@link ClubbyOptions#hedgePercentile(double)
+ * ClubbyOptions.hedgePercentile()}.
+ *
+ * It's the listener of the primary command. If the primary command doesn't
+ * get the response within the percentile of the recent latency of the
+ * destination, a duplicate command (with a new id) is sent. Whichever
+ * command gets the answer first wins: the answer is delivered to the actual
+ * listener, and the other command is forgotten. Failures of the hedge are
+ * ignored, the call keeps waiting for the primary command, whose timeout is
+ * the timeout of the whole call.
+ */
+final class HedgedCall<R> implements CmdListener<R> {
+
+    /**
+     * Sends the duplicate command; returns its id.
+     */
+    interface HedgeSender<R> {
+        int send(CmdListener<R> hedgeListener);
+    }
+
+    /**
+     * Forgets the losing command.
+     */
+    interface Forgetter {
+        void forget(int cmdId);
+    }
+
+    private final CmdListener<R> listener;
+    private final String dst;
+    private final HedgeTracker tracker;
+
+    private final AtomicBoolean decided = new AtomicBoolean(false);
+
+    /*
+     * Set before the primary command is sent, since the response can come
+     * before start() is called
+     */
+    private final long primaryStart = System.nanoTime();
+    private volatile int primaryId = 0;
+    private volatile long hedgeStart;
+    private volatile int hedgeId = 0;
+    private volatile TimeoutWheel.Timeout hedgeTimer = null;
+
+    private final CmdListener<R> hedgeListener = new CmdListener<R>() {
+        @Override
+        public void onResponse(R response) {
+            onAnswer(true, response, 0, null);
+        }
+
+        @Override
+        public void onError(int status, String statusMsg) {
+            onAnswer(true, null, status, statusMsg);
+        }
+    };
+
+    private volatile HedgeSender<R> sender;
+    private volatile Forgetter forgetter;
+
+    HedgedCall(CmdListener<R> listener, String dst, HedgeTracker tracker) {
+        this.listener = listener;
+        this.dst = dst;
+        this.tracker = tracker;
+    }
+
+    /**
+     * Returns the actual listener of the call.
+     */
+    CmdListener<R> getListener() {
+        return listener;
+    }
+
+    /**
+     * Called once the primary command is sent: schedules the hedge, if the
+     * latency of the destination is known already. The hedge is sent on the
+     * given executor.
+     */
+    void start(
+            int primaryId,
+            double percentile,
+            double maxRate,
+            TimeoutWheel timeoutWheel,
+            final Executor executor,
+            HedgeSender<R> sender,
+            Forgetter forgetter
+            ) {
+        this.primaryId = primaryId;
+        this.sender = sender;
+        this.forgetter = forgetter;
+
+        long delay = tracker.onCall(dst, percentile, maxRate);
+        if (delay < 0) {
+            return;
+        }
+
+        // Sending might block (e.g. on the full send queue), so it's not done
+        // on the thread of the timeout wheel; if the executor is busy, the
+        // hedge is skipped
+        final Runnable fire = new Runnable() {
+            @Override
+            public void run() {
+                fireHedge();
+            }
+        };
+        hedgeTimer = timeoutWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (decided.get()) {
+                    return;
+                }
+                try {
+                    executor.execute(fire);
+                } catch (RejectedExecutionException e) {
+                    // Not sending the hedge is fine
+                }
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+
+        if (decided.get()) {
+            hedgeTimer.cancel();
+        }
+    }
+
+    /**
+     * Forgets the hedge, if any; called when the call is cancelled.
+     */
+    void cancel() {
+        if (decided.compareAndSet(false, true)) {
+            cancelHedge();
+        }
+    }
+
+    @Override
+    public void onResponse(R response) {
+        onAnswer(false, response, 0, null);
+    }
+
+    @Override
+    public void onError(int status, String statusMsg) {
+        onAnswer(false, null, status, statusMsg);
+    }
+
+    private void fireHedge() {
+        if (decided.get() || !tracker.tryHedge(dst)) {
+            return;
+        }
+
+        hedgeStart = System.nanoTime();
+        int id = sender.send(hedgeListener);
+        hedgeId = id;
+
+        // The call might have been decided while the hedge was being sent
+        if (decided.get()) {
+            forgetter.forget(id);
+        }
+    }
+
+    private void cancelHedge() {
+        TimeoutWheel.Timeout timer = hedgeTimer;
+        if (timer != null) {
+            timer.cancel();
+        }
+        int id = hedgeId;
+        if (id != 0) {
+            forgetter.forget(id);
+        }
+    }
+
+    private void onAnswer(boolean fromHedge, R response, int status, String statusMsg) {
+        if (fromHedge && status != 0) {
+            // The hedge might have failed locally (e.g. no room in flight),
+            // while the primary command is fine; just keep waiting for it
+            return;
+        }
+
+        if (!decided.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (fromHedge) {
+            tracker.onHedgeWon();
+            forgetter.forget(primaryId);
+        } else {
+            cancelHedge();
+        }
+
+        if (status == 0) {
+            long start = fromHedge ? hedgeStart : primaryStart;
+            tracker.record(dst, System.nanoTime() - start);
+            listener.onResponse(response);
+        } else {
+            listener.onError(status, statusMsg);
+        }
+    }
+
+}
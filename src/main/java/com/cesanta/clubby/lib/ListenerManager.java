@@ -5,66 +5,181 @@
 
 package com.cesanta.clubby.lib;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DataFormatException;
 
 import com.neovisionaries.ws.client.WebSocketException;
 
+/**
+ * Notifies generic Clubby listeners; listeners are called by means of the
+ * callback executor, see {@link Clubby.Builder#callbackExecutor(CallbackExecutor)
+ * Builder.callbackExecutor()}.
+ */
 class ListenerManager {
     private final Clubby clubby;
+    private final CallbackExecutor executor;
+    /*
+     * Listeners are added and removed by user threads, and notified from the
+     * websocket threads
+     */
     private final List<ClubbyListener> listeners
-        = new ArrayList<ClubbyListener>();
-
-    public ListenerManager(Clubby clubby) {
+        = new CopyOnWriteArrayList<ClubbyListener>();
+
+    /*
+     * Listeners which actually handle the raw data, i.e. override
+     * onDataSending() / onDataReceived() of ClubbyAdapter; unless there are
+     * any, the raw data isn't even decoded into text
+     */
+    private final List<ClubbyListener> sendingListeners
+        = new CopyOnWriteArrayList<ClubbyListener>();
+    private final List<ClubbyListener> receivingListeners
+        = new CopyOnWriteArrayList<ClubbyListener>();
+
+    public ListenerManager(Clubby clubby, CallbackExecutor executor) {
         this.clubby = clubby;
+        this.executor = executor;
     }
 
     public void addListener(ClubbyListener listener) {
         if (listener != null) {
             listeners.add(listener);
+            if (overrides(listener, "onDataSending")) {
+                sendingListeners.add(listener);
+            }
+            if (overrides(listener, "onDataReceived")) {
+                receivingListeners.add(listener);
+            }
         }
     }
 
     public void removeListener(ClubbyListener listener) {
         if (listener != null) {
             listeners.remove(listener);
+            sendingListeners.remove(listener);
+            receivingListeners.remove(listener);
         }
     }
 
     public void onConnected() {
-        for (ClubbyListener listener : listeners) {
-            listener.onConnected(clubby);
+        if (listeners.isEmpty()) {
+            return;
         }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ClubbyListener listener : listeners) {
+                    listener.onConnected(clubby);
+                }
+            }
+        });
     }
 
     public void onDisconnected() {
-        for (ClubbyListener listener : listeners) {
-            listener.onDisconnected(clubby);
+        if (listeners.isEmpty()) {
+            return;
         }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ClubbyListener listener : listeners) {
+                    listener.onDisconnected(clubby);
+                }
+            }
+        });
     }
 
-    public void onConnectError(WebSocketException cause) {
-        for (ClubbyListener listener : listeners) {
-            listener.onConnectError(clubby, cause);
+    public void onConnectError(final WebSocketException cause) {
+        if (listeners.isEmpty()) {
+            return;
         }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ClubbyListener listener : listeners) {
+                    listener.onConnectError(clubby, cause);
+                }
+            }
+        });
     }
 
-    public void onError(WebSocketException cause) {
-        for (ClubbyListener listener : listeners) {
-            listener.onError(clubby, cause);
+    public void onError(final WebSocketException cause) {
+        if (listeners.isEmpty()) {
+            return;
         }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ClubbyListener listener : listeners) {
+                    listener.onError(clubby, cause);
+                }
+            }
+        });
     }
 
-    public void onDataSending(String text) {
-        for (ClubbyListener listener : listeners) {
-            listener.onDataSending(clubby, text);
+    /**
+     * Notifies listeners about the payload which is being sent; the payload
+     * is inflated (if compressed) and decoded into text by the callback
+     * executor, and only if some listener handles the raw data.
+     */
+    public void onDataSending(
+            final FrameCodec codec,
+            final byte[] data,
+            final boolean compressed
+            ) {
+        if (sendingListeners.isEmpty()) {
+            return;
         }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] payload = data;
+                if (compressed) {
+                    try {
+                        payload = FrameCompressor.decompress(data);
+                    } catch (DataFormatException e) {
+                        payload = new byte[0];
+                    }
+                }
+                String text = codec.toText(payload);
+                for (ClubbyListener listener : sendingListeners) {
+                    listener.onDataSending(clubby, text);
+                }
+            }
+        });
     }
 
-    public void onDataReceived(String text) {
-        for (ClubbyListener listener : listeners) {
-            listener.onDataReceived(clubby, text);
+    public void onDataReceived(final String text) {
+        if (receivingListeners.isEmpty()) {
+            return;
         }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ClubbyListener listener : receivingListeners) {
+                    listener.onDataReceived(clubby, text);
+                }
+            }
+        });
+    }
+
+    /**
+     * The same as {@link #onDataSending(FrameCodec, byte[], boolean)
+     * onDataSending()}, for the received payload.
+     */
+    public void onDataReceived(final FrameCodec codec, final byte[] data) {
+        if (receivingListeners.isEmpty()) {
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                String text = codec.toText(data);
+                for (ClubbyListener listener : receivingListeners) {
+                    listener.onDataReceived(clubby, text);
+                }
+            }
+        });
     }
 
     public void handleCallbackError(Throwable cause) {
@@ -73,10 +188,51 @@ class ListenerManager {
         }
     }
 
-    public void onStateChanged(ClubbyState newState) {
-        for (ClubbyListener listener : listeners) {
-            listener.onStateChanged(clubby, newState);
+    public void onStateChanged(final ClubbyState newState) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ClubbyListener listener : listeners) {
+                    listener.onStateChanged(clubby, newState);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether the listener overrides the given raw data method of
+     * {@link ClubbyAdapter}; listeners implementing {@link ClubbyListener}
+     * directly are assumed to override everything.
+     */
+    private static boolean overrides(ClubbyListener listener, String method) {
+        try {
+            return listener.getClass()
+                .getMethod(method, Clubby.class, String.class)
+                .getDeclaringClass() != ClubbyAdapter.class;
+        } catch (NoSuchMethodException e) {
+            return true;
         }
     }
 
+    /**
+     * Runs the task by means of the callback executor; errors thrown by the
+     * listeners are reported to {@link #handleCallbackError(Throwable)
+     * handleCallbackError()}.
+     */
+    private void execute(final Runnable task) {
+        executor.execute(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    handleCallbackError(t);
+                }
+            }
+        });
+    }
+
 }
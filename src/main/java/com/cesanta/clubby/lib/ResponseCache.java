@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * LRU cache of the responses, keyed by source identity, destination, command
+ * and arguments, see {@link ClubbyOptions#cacheTtl(long)
+ * ClubbyOptions.cacheTtl()}.
+ *
+ * Responses are kept as token buffers, the same way they are received, so
+ * the cached response is bound to whatever type the caller wants; a token
+ * buffer can be read any number of times, concurrently.
+ *
+ * After the TTL, the response is stale: if the stale window is set, it's
+ * still returned, but the caller is asked to refresh it (only one refresh is
+ * requested at a time). After the stale window, the response is dropped.
+ */
+final class ResponseCache {
+
+    enum Result {
+        /* No usable response in the cache */
+        MISS,
+        /* Fresh response */
+        HIT,
+        /* Stale response, which should be refreshed by the caller */
+        STALE_REFRESH,
+        /* Stale response, which is being refreshed already */
+        STALE
+    }
+
+    private static final class CachedResp {
+        final TokenBuffer resp;
+        final long freshUntil;
+        final long staleUntil;
+        boolean refreshing = false;
+
+        CachedResp(TokenBuffer resp, long freshUntil, long staleUntil) {
+            this.resp = resp;
+            this.freshUntil = freshUntil;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+    /**
+     * Result of the lookup, together with the response.
+     */
+    static final class Lookup {
+        final Result result;
+        final TokenBuffer resp;
+
+        private Lookup(Result result, TokenBuffer resp) {
+            this.result = result;
+            this.resp = resp;
+        }
+    }
+
+    private static final Lookup MISS = new Lookup(Result.MISS, null);
+
+    /*
+     * Mapper for the cache keys: properties and map entries are sorted, so
+     * that equal arguments give the same key
+     */
+    private final ObjectMapper keyMapper = new ObjectMapper()
+        .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
+        .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+        .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /* Guarded by the lock */
+    private final LinkedHashMap<String, CachedResp> entries;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * @param capacity
+     *      Max number of cached responses.
+     */
+    ResponseCache(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("illegal capacity: " + capacity);
+        }
+        this.entries = new LinkedHashMap<String, CachedResp>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResp> eldest) {
+                if (size() > capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns cache key of the call, or null if the arguments can't be
+     * serialized (then the call is not cached).
+     */
+    String getKey(String src, String dst, String cmd, Object args) {
+        try {
+            return src + '\n' + dst + '\n' + cmd + '\n'
+                + keyMapper.writeValueAsString(args);
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+    }
+
+    Lookup get(String key) {
+        long now = System.nanoTime();
+
+        lock.lock();
+        try {
+            CachedResp entry = entries.get(key);
+            if (entry != null) {
+                if (now - entry.freshUntil < 0) {
+                    hits.incrementAndGet();
+                    return new Lookup(Result.HIT, entry.resp);
+                }
+
+                if (now - entry.staleUntil < 0) {
+                    hits.incrementAndGet();
+                    if (entry.refreshing) {
+                        return new Lookup(Result.STALE, entry.resp);
+                    }
+                    entry.refreshing = true;
+                    return new Lookup(Result.STALE_REFRESH, entry.resp);
+                }
+
+                entries.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        misses.incrementAndGet();
+        return MISS;
+    }
+
+    /**
+     * Stores the response.
+     *
+     * @param ttlMillis
+     *      Time for which the response is fresh.
+     * @param staleMillis
+     *      Time after the TTL for which the stale response can be used,
+     *      while it's being refreshed.
+     */
+    void put(String key, TokenBuffer resp, long ttlMillis, long staleMillis) {
+        long freshUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        long staleUntil = freshUntil + TimeUnit.MILLISECONDS.toNanos(staleMillis);
+        CachedResp entry = new CachedResp(resp, freshUntil, staleUntil);
+
+        lock.lock();
+        try {
+            entries.put(key, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called when the refresh of the stale response has failed, so that the
+     * next lookup requests another one.
+     */
+    void refreshFailed(String key) {
+        lock.lock();
+        try {
+            CachedResp entry = entries.get(key);
+            if (entry != null) {
+                entry.refreshing = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+}
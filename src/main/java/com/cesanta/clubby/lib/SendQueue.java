@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of outgoing frames which can't be sent right away (e.g.
+ * because the websocket is still connecting).
+ *
+ * When the queue is full, the frame is handled according to the {@link
+ * SendQueuePolicy}.
+ */
+final class SendQueue {
+
+    /**
+     * Frame to send, together with the ids of the commands it carries, so
+     * that their listeners can be notified if the frame is dropped.
+     */
+    static final class Frame {
+        final Clubby.JsonFrame jsonFrame;
+        final int[] cmdIds;
+
+        Frame(Clubby.JsonFrame jsonFrame, int[] cmdIds) {
+            this.jsonFrame = jsonFrame;
+            this.cmdIds = cmdIds;
+        }
+    }
+
+    interface Sink {
+        /**
+         * Send the frame on the wire; returns false if it can't be done at
+         * the moment.
+         */
+        boolean send(Frame frame);
+
+        /**
+         * Notify listeners of the commands of the frame which won't be sent.
+         */
+        void drop(Frame frame, int status, String statusMsg);
+    }
+
+    private final BlockingDeque<Frame> queue;
+    private final SendQueuePolicy policy;
+    private final Sink sink;
+
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+    SendQueue(int capacity, SendQueuePolicy policy, Sink sink) {
+        this.queue = new LinkedBlockingDeque<Frame>(capacity);
+        this.policy = policy;
+        this.sink = sink;
+    }
+
+    /**
+     * Add frame to the queue, handling the overflow according to the policy.
+     */
+    void add(Frame frame) {
+        switch (policy) {
+            case BLOCK:
+                try {
+                    queue.putLast(frame);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sink.drop(
+                            frame,
+                            ClubbyStatus.SEND_QUEUE_FULL,
+                            "Interrupted while waiting for the send queue"
+                            );
+                }
+                break;
+
+            case FAIL_FAST:
+                if (!queue.offerLast(frame)) {
+                    sink.drop(
+                            frame,
+                            ClubbyStatus.SEND_QUEUE_FULL,
+                            "Send queue is full"
+                            );
+                }
+                break;
+
+            case DROP_OLDEST:
+                Frame dropped = null;
+                while (!queue.offerLast(frame)) {
+                    Frame oldest = queue.pollFirst();
+                    if (oldest != null) {
+                        if (dropped != null) {
+                            dropOverflown(dropped);
+                        }
+                        dropped = oldest;
+                    }
+                }
+                // Notify after the new frame is queued, so that listener
+                // errors don't prevent that
+                if (dropped != null) {
+                    dropOverflown(dropped);
+                }
+                break;
+        }
+    }
+
+    private void dropOverflown(Frame frame) {
+        sink.drop(
+                frame,
+                ClubbyStatus.SEND_QUEUE_FULL,
+                "Dropped from the full send queue"
+                );
+    }
+
+    /**
+     * Send the frame right away, bypassing the queue; returns false if it
+     * can't be done, then the caller should queue the frame.
+     *
+     * The frame is only sent if nothing is queued and nobody is draining the
+     * queue, under the drain lock, so that it can't overtake the frames
+     * which were queued before it.
+     */
+    boolean sendNow(Frame frame) {
+        if (!drainLock.tryLock()) {
+            return false;
+        }
+        boolean sent;
+        try {
+            sent = queue.isEmpty() && sink.send(frame);
+        } finally {
+            drainLock.unlock();
+        }
+
+        // Frames might have been queued while the lock was held; the threads
+        // which queued them have given up draining, so take care of them.
+        if (sent && !queue.isEmpty()) {
+            drain();
+        }
+        return sent;
+    }
+
+    /**
+     * Send all the queued frames. If some frame can't be sent, it's returned
+     * to the head of the queue, and draining stops.
+     */
+    void drain() {
+        do {
+            if (!drainLock.tryLock()) {
+                // Somebody else is draining the queue
+                return;
+            }
+            try {
+                Frame frame;
+                while ((frame = queue.pollFirst()) != null) {
+                    if (!sink.send(frame)) {
+                        if (!queue.offerFirst(frame)) {
+                            dropOverflown(frame);
+                        }
+                        return;
+                    }
+                }
+            } finally {
+                drainLock.unlock();
+            }
+
+            // Frames might have been added after the last poll, but before
+            // the lock was released; the thread which added them has given up
+            // draining, so take care of them.
+        } while (!queue.isEmpty());
+    }
+
+    /**
+     * Drop all the queued frames, notifying listeners of their commands with
+     * the given status.
+     */
+    void dropAll(int status, String statusMsg) {
+        Frame frame;
+        while ((frame = queue.pollFirst()) != null) {
+            sink.drop(frame, status, statusMsg);
+        }
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the most recently queued frame, or null if the queue is empty.
+     */
+    Frame peekLast() {
+        return queue.peekLast();
+    }
+
+}
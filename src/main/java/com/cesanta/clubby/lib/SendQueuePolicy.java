@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+/**
+ * What to do with an outgoing frame when the send queue is full.
+ *
+ * @see Clubby.Builder#sendQueuePolicy(SendQueuePolicy)
+ */
+public enum SendQueuePolicy {
+    /**
+     * Block the caller until there is room in the queue.
+     */
+    BLOCK,
+
+    /**
+     * Fail commands of the new frame with {@link
+     * ClubbyStatus#SEND_QUEUE_FULL}.
+     */
+    FAIL_FAST,
+
+    /**
+     * Fail commands of the oldest frame in the queue with {@link
+     * ClubbyStatus#SEND_QUEUE_FULL}, and queue the new one.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.json.JsonGeneratorImpl;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Command arguments shared by many commands, see {@link
+ * Clubby#callMany(java.util.Collection, String, Object, Class, FanOutPolicy,
+ * ClubbyOptions) Clubby.callMany()}: the arguments are serialized once, and
+ * the result is written into each frame.
+ *
+ * The arguments are serialized into a token buffer. JSON frames get the JSON
+ * text as a raw value; it's made from the tokens when the first JSON frame
+ * is written. Frames of other codecs get the buffered tokens replayed, which
+ * still saves the serialization of the arguments object itself.
+ */
+final class SharedArgs implements JsonSerializable {
+
+    private final ObjectMapper mapper;
+    private final TokenBuffer tokens;
+
+    /* JSON text of the arguments, made on demand; racy, but idempotent */
+    private volatile String json = null;
+
+    /**
+     * @throws JsonProcessingException - The arguments can't be serialized.
+     */
+    SharedArgs(ObjectMapper mapper, Object args) throws JsonProcessingException {
+        this.mapper = mapper;
+
+        TokenBuffer buf = new TokenBuffer(mapper, false);
+        try {
+            mapper.writeValue(buf, args);
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            // Token buffer doesn't do any I/O
+            throw new IllegalStateException(e);
+        }
+        this.tokens = buf;
+    }
+
+    @Override
+    public void serialize(JsonGenerator gen, SerializerProvider serializers)
+        throws IOException {
+
+        if (gen instanceof JsonGeneratorImpl) {
+            String cur = json;
+            if (cur == null) {
+                cur = mapper.writeValueAsString(tokens);
+                json = cur;
+            }
+            gen.writeRawValue(cur);
+        } else {
+            tokens.serialize(gen);
+        }
+    }
+
+    @Override
+    public void serializeWithType(
+            JsonGenerator gen,
+            SerializerProvider serializers,
+            TypeSerializer typeSer
+            ) throws IOException {
+        serialize(gen, serializers);
+    }
+
+}
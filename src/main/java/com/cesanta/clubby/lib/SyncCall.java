@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Listener of the command performed by {@link Clubby#callSync(String, String,
+ * Object, Class, ClubbyOptions) Clubby.callSync()}: the calling thread parks
+ * until the listener is notified.
+ *
+ * No monitors are involved, so virtual threads waiting for the response
+ * don't pin their carrier threads. For the same reason, the locks which the
+ * calling threads take inside the library (the in-flight limits, batches,
+ * caches and so on) are ReentrantLocks rather than monitors: a virtual thread
+ * blocked on a monitor is pinned to its carrier while waiting for it.
+ */
+final class SyncCall<R> implements CmdListener<R> {
+
+    private final Thread waiter = Thread.currentThread();
+
+    private R response = null;
+    private int status = 0;
+    private String statusMsg = null;
+
+    /*
+     * Written after the fields above, so that they are visible to the waiter
+     * once it sees the call done
+     */
+    private volatile boolean done = false;
+
+    @Override
+    public void onResponse(R response) {
+        this.response = response;
+        this.done = true;
+        LockSupport.unpark(waiter);
+    }
+
+    @Override
+    public void onError(int status, String statusMsg) {
+        this.status = status;
+        this.statusMsg = statusMsg;
+        this.done = true;
+        LockSupport.unpark(waiter);
+    }
+
+    /**
+     * Waits until the listener is notified; should be called by the thread
+     * which has created the instance.
+     *
+     * @throws ClubbyException - The command has failed.
+     * @throws InterruptedException - The thread was interrupted while
+     *         waiting.
+     */
+    R await() throws InterruptedException {
+        while (!done) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        if (status != 0) {
+            throw new ClubbyException(status, statusMsg);
+        }
+        return response;
+    }
+
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel for the command timeouts.
+ *
+ * Time is divided into ticks of configurable duration; each tick corresponds
+ * to a bucket on the wheel, and a timeout is put into the bucket in which it
+ * expires (with the number of full wheel rounds to wait). Scheduling and
+ * cancellation are O(1): callers only enqueue a timeout into a lock-free
+ * queue, and the single reaper thread moves it into the bucket (or removes it
+ * from the bucket, for the cancelled ones).
+ *
+ * On each tick, all the expired timeouts of the current bucket are collected
+ * first, and then their tasks are run as a batch.
+ *
+ * The reaper thread is a daemon one, it's started when the first timeout is
+ * scheduled. When there are no timeouts left, it parks until the next one is
+ * scheduled; if keep-alive is off, it exits instead, and the next timeout
+ * starts it again. Once the wheel is stopped, the thread exits for good.
+ */
+final class TimeoutWheel {
+
+    /*
+     * Max number of timeouts moved from the queue into the wheel per tick, so
+     * that a burst of new timeouts doesn't delay the expiration too much
+     */
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+    private final long startTime = System.nanoTime();
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile Thread worker;
+    private volatile boolean idle = false;
+    private volatile boolean keepAlive = false;
+    private volatile boolean stopped = false;
+
+    /* Accessed by the reaper thread only */
+    private long tick = 0;
+    private int size = 0;
+
+    /**
+     * @param tickMillis
+     *      Duration of a single tick, i.e. the resolution of the timer.
+     * @param wheelSize
+     *      Number of buckets on the wheel; rounded up to a power of two.
+     */
+    TimeoutWheel(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tick must be positive: " + tickMillis);
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("illegal wheel size: " + wheelSize);
+        }
+
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Schedule the task to be run by the reaper thread after the given delay.
+     * The returned handle can be used to cancel the task. If the wheel is
+     * stopped, the task is never run.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+        Timeout timeout = new Timeout(this, task, deadline);
+        if (stopped) {
+            return timeout;
+        }
+        added.add(timeout);
+
+        // The timeout should be queued before that, see Worker.awaitTimeouts()
+        if (!started.get() && started.compareAndSet(false, true)) {
+            Thread thread = new Thread(new Worker(), "clubby-timeout");
+            thread.setDaemon(true);
+            worker = thread;
+            thread.start();
+        } else if (idle) {
+            LockSupport.unpark(worker);
+        }
+        return timeout;
+    }
+
+    /**
+     * Set whether the reaper thread should be kept parked when there are no
+     * timeouts left; otherwise it exits. Off by default, so that a discarded
+     * timer doesn't hold a thread.
+     */
+    void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        if (!keepAlive && idle) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Stop the reaper thread; the timeouts which haven't expired yet are
+     * never run.
+     */
+    void stop() {
+        stopped = true;
+        Thread thread = worker;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Handle of the scheduled task.
+     */
+    static final class Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimeoutWheel timer;
+        private final Runnable task;
+        private final long deadline;
+
+        private volatile int state = ST_INIT;
+
+        /* Fields below are accessed by the reaper thread only */
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(TimeoutWheel timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task. Returns false if the task has already expired (or
+         * was cancelled before).
+         */
+        boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            if (!timer.stopped) {
+                timer.cancelled.add(this);
+            }
+            return true;
+        }
+
+        boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        private boolean expire() {
+            return STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED);
+        }
+    }
+
+    /**
+     * Doubly-linked list of timeouts; accessed by the reaper thread only.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+
+            if (timeout == head) {
+                if (timeout == tail) {
+                    head = tail = null;
+                } else {
+                    head = next;
+                }
+            } else if (timeout == tail) {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        /**
+         * Removes expired timeouts from the bucket and adds them to the given
+         * list; for the rest of them, decrements the number of remaining
+         * rounds. Returns the number of timeouts removed from the bucket.
+         */
+        int collectExpired(List<Timeout> expired) {
+            int removed = 0;
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.remainingRounds <= 0) {
+                    Timeout next = remove(timeout);
+                    if (timeout.expire()) {
+                        expired.add(timeout);
+                    }
+                    timeout = next;
+                    removed++;
+                } else if (timeout.isCancelled()) {
+                    timeout = remove(timeout);
+                    removed++;
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+            return removed;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final List<Timeout> expired = new ArrayList<Timeout>();
+
+        @Override
+        public void run() {
+            for (;;) {
+                if (stopped) {
+                    return;
+                }
+
+                if (size == 0) {
+                    if (!awaitTimeouts()) {
+                        return;
+                    }
+
+                    // Nothing is on the wheel, so skip the idle ticks
+                    long now = System.nanoTime() - startTime;
+                    tick = Math.max(tick, now / tickNanos);
+                }
+
+                waitForNextTick();
+
+                processCancelled();
+                transferAdded();
+
+                Bucket bucket = wheel[(int) (tick & mask)];
+                size -= bucket.collectExpired(expired);
+
+                for (Timeout timeout : expired) {
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable t) {
+                        /*
+                         * A failing task must not stop the reaper thread;
+                         * there's nobody to report the error to, so just
+                         * go on with the rest of the batch.
+                         */
+                    }
+                }
+                expired.clear();
+
+                tick++;
+            }
+        }
+
+        /**
+         * Waits until some timeout is scheduled; returns false if the thread
+         * should exit instead.
+         *
+         * Both the scheduling and the exit are checked twice around the
+         * flags ("started" and "idle"), so that a timeout queued concurrently
+         * is either seen here, or the scheduler sees the flag and starts or
+         * unparks the thread.
+         */
+        private boolean awaitTimeouts() {
+            while (added.isEmpty()) {
+                if (stopped) {
+                    return false;
+                }
+                if (!keepAlive) {
+                    started.set(false);
+                    return !added.isEmpty() && started.compareAndSet(false, true);
+                }
+
+                idle = true;
+                if (added.isEmpty() && keepAlive && !stopped) {
+                    LockSupport.park(TimeoutWheel.this);
+                }
+                idle = false;
+            }
+            return true;
+        }
+
+        /**
+         * Sleeps until the end of the current tick.
+         */
+        private void waitForNextTick() {
+            long deadline = tickNanos * (tick + 1);
+            for (;;) {
+                long sleepNanos = deadline - (System.nanoTime() - startTime);
+                if (sleepNanos <= 0) {
+                    return;
+                }
+                LockSupport.parkNanos(TimeoutWheel.this, sleepNanos);
+            }
+        }
+
+        private void processCancelled() {
+            for (;;) {
+                Timeout timeout = cancelled.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                    size--;
+                }
+            }
+        }
+
+        private void transferAdded() {
+            for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+                Timeout timeout = added.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+
+                long calculated = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+
+                // Timeouts which are already late go to the current bucket
+                long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+                size++;
+            }
+        }
+    }
+
+}
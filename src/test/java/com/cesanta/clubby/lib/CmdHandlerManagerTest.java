@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cesanta.clubby.lib.Clubby.JsonResp;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+public class CmdHandlerManagerTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Executor which runs the tasks only when asked to
+     */
+    private static final class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        boolean reject = false;
+
+        @Override
+        public void execute(Runnable task) {
+            if (reject) {
+                throw new RejectedExecutionException();
+            }
+            tasks.add(task);
+        }
+
+        void runAll() {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+    }
+
+    /**
+     * Sender which records the responses, as strings
+     */
+    private static final class Recorder implements CmdHandlerManager.RespSender {
+        final List<String> resps = new ArrayList<String>();
+
+        @Override
+        public void send(String dst, JsonResp resp) {
+            try {
+                resps.add(dst + " " + resp.id + " " + resp.status + " "
+                        + resp.status_msg + " " + MAPPER.writeValueAsString(resp.resp));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Handler which echoes the arguments, and counts calls
+     */
+    private static final class Echo implements CmdHandler<Map<String, Object>> {
+        int calls = 0;
+
+        @Override
+        public Object onCommand(String src, Map<String, Object> args) {
+            calls++;
+            return args;
+        }
+    }
+
+    private final ManualExecutor pool = new ManualExecutor();
+    private final Recorder recorder = new Recorder();
+    private final CmdHandlerManager manager =
+        new CmdHandlerManager(MAPPER, pool, recorder);
+
+    private static FrameDecoder.Cmd createCmd(String name, int id, Object args)
+        throws IOException
+    {
+        FrameDecoder.Cmd cmd = new FrameDecoder.Cmd();
+        cmd.cmd = name;
+        cmd.id = id;
+        if (args != null) {
+            cmd.args = new TokenBuffer(MAPPER, false);
+            MAPPER.writeValue(cmd.args, args);
+        }
+        return cmd;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void registerEcho(String name, Echo echo) {
+        manager.register(name, echo, (Class) Map.class);
+    }
+
+    @Test
+    public void dispatchedByName() throws IOException {
+        Echo echo = new Echo();
+        registerEcho("Echo", echo);
+        manager.register("Hello", new CmdHandler<Object>() {
+            @Override
+            public Object onCommand(String src, Object args) {
+                return "hello " + src;
+            }
+        }, Object.class);
+
+        manager.handle("peer", createCmd("Echo", 1, Collections.singletonMap("a", 1)));
+        manager.handle("peer", createCmd("Hello", 2, null));
+        manager.handle("peer", createCmd("Echo", 3, null));
+
+        // Handlers run on the pool only
+        assertTrue(recorder.resps.isEmpty());
+        pool.runAll();
+
+        assertEquals(3, recorder.resps.size());
+        assertEquals("peer 1 0  {\"a\":1}", recorder.resps.get(0));
+        assertEquals("peer 2 0  \"hello peer\"", recorder.resps.get(1));
+        assertEquals("peer 3 0  null", recorder.resps.get(2));
+        assertEquals(2, echo.calls);
+    }
+
+    @Test
+    public void unknownAndUnregistered() throws IOException {
+        Echo echo = new Echo();
+        registerEcho("Echo", echo);
+        manager.unregister("Echo");
+        manager.unregister("Other");
+
+        manager.handle("peer", createCmd("Echo", 1, null));
+        manager.handle("peer", createCmd("Other", 2, null));
+
+        assertTrue(pool.tasks.isEmpty());
+        assertEquals(2, recorder.resps.size());
+        assertEquals("peer 1 404 Unknown command: Echo null", recorder.resps.get(0));
+        assertEquals("peer 2 404 Unknown command: Other null", recorder.resps.get(1));
+        assertEquals(0, echo.calls);
+    }
+
+    @Test
+    public void registeredAgainReplacesHandler() throws IOException {
+        Echo first = new Echo();
+        Echo second = new Echo();
+        registerEcho("Echo", first);
+        registerEcho("Echo", second);
+
+        manager.handle("peer", createCmd("Echo", 1, null));
+        pool.runAll();
+        assertEquals(0, first.calls);
+        assertEquals(1, second.calls);
+    }
+
+    @Test
+    public void expiredBeforeRun() throws Exception {
+        Echo echo = new Echo();
+        registerEcho("Echo", echo);
+
+        FrameDecoder.Cmd expiring = createCmd("Echo", 1, null);
+        expiring.hasDeadline = true;
+        expiring.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1);
+        FrameDecoder.Cmd lasting = createCmd("Echo", 2, null);
+        lasting.hasDeadline = true;
+        lasting.deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+
+        manager.handle("peer", expiring);
+        manager.handle("peer", lasting);
+        Thread.sleep(10);
+        pool.runAll();
+
+        assertEquals(2, recorder.resps.size());
+        assertEquals("peer 1 504 Deadline exceeded null", recorder.resps.get(0));
+        assertEquals("peer 2 0  null", recorder.resps.get(1));
+        assertEquals(1, echo.calls);
+    }
+
+    @Test
+    public void failures() throws IOException {
+        manager.register("Status", new CmdHandler<Object>() {
+            @Override
+            public Object onCommand(String src, Object args) throws Exception {
+                throw new ClubbyException(418, "teapot");
+            }
+        }, Object.class);
+        manager.register("Crash", new CmdHandler<Object>() {
+            @Override
+            public Object onCommand(String src, Object args) {
+                throw new IllegalStateException("crash");
+            }
+        }, Object.class);
+        manager.register("Unserializable", new CmdHandler<Object>() {
+            @Override
+            public Object onCommand(String src, Object args) {
+                return new Object() {
+                    @SuppressWarnings("unused")
+                    public Object getSelf() {
+                        return this;
+                    }
+                };
+            }
+        }, Object.class);
+        manager.register("Int", new CmdHandler<Integer>() {
+            @Override
+            public Object onCommand(String src, Integer args) {
+                return args;
+            }
+        }, Integer.class);
+
+        manager.handle("peer", createCmd("Status", 1, null));
+        manager.handle("peer", createCmd("Crash", 2, null));
+        manager.handle("peer", createCmd("Unserializable", 3, null));
+        manager.handle("peer", createCmd("Int", 4, "str"));
+        manager.handle("peer", createCmd("Int", 5, 7));
+        pool.runAll();
+
+        assertEquals(5, recorder.resps.size());
+        assertEquals("peer 1 418 teapot null", recorder.resps.get(0));
+        assertEquals("peer 2 500 crash null", recorder.resps.get(1));
+        assertTrue(recorder.resps.get(2).startsWith("peer 3 500 Failed to serialize"));
+        assertTrue(recorder.resps.get(3).startsWith("peer 4 400 Invalid arguments"));
+        assertEquals("peer 5 0  7", recorder.resps.get(4));
+    }
+
+    @Test
+    public void busyPool() throws IOException {
+        registerEcho("Echo", new Echo());
+        pool.reject = true;
+
+        manager.handle("peer", createCmd("Echo", 1, null));
+        assertEquals(1, recorder.resps.size());
+        assertEquals("peer 1 503 Too many commands in progress null", recorder.resps.get(0));
+    }
+
+    @Test
+    public void commandsWithoutIdGetNoResponse() throws IOException {
+        Echo echo = new Echo();
+        registerEcho("Echo", echo);
+        manager.handle("peer", createCmd("Echo", 0, null));
+        manager.handle("peer", createCmd("Unknown", 0, null));
+        pool.runAll();
+
+        assertEquals(1, echo.calls);
+        assertTrue(recorder.resps.isEmpty());
+    }
+
+    @Test
+    public void poolRunsHandlers() throws Exception {
+        final Object lock = new Object();
+        final List<String> resps = new ArrayList<String>();
+        CmdHandlerManager pooled = new CmdHandlerManager(
+                MAPPER,
+                CmdHandlerManager.createPool(2, 4),
+                new CmdHandlerManager.RespSender() {
+                    @Override
+                    public void send(String dst, JsonResp resp) {
+                        synchronized (lock) {
+                            resps.add(dst + " " + resp.id + " " + resp.status);
+                            lock.notifyAll();
+                        }
+                    }
+                });
+        pooled.register("Echo", new CmdHandler<Object>() {
+            @Override
+            public Object onCommand(String src, Object args) {
+                return args;
+            }
+        }, Object.class);
+
+        for (int i = 1; i <= 4; i++) {
+            pooled.handle("peer", createCmd("Echo", i, i));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        synchronized (lock) {
+            while (resps.size() < 4 && deadline - System.nanoTime() > 0) {
+                lock.wait(100);
+            }
+            assertEquals(4, resps.size());
+            for (String resp : resps) {
+                assertTrue(resp.startsWith("peer "));
+                assertTrue(resp.endsWith(" 0"));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Contention benchmark of the pending-call table: {@link CmdListenerManager}
+ * against the `synchronized` HashMap it has replaced, at 1, 4 and 16
+ * calling threads.
+ *
+ * Each thread keeps a window of commands pending, as a caller with a few
+ * calls in flight would: it adds a listener with the next id and pops the
+ * oldest one. Not run by the build; run it with the test classpath:
+ *
+ *     java -cp target/classes:target/test-classes:<deps> \
+ *         com.cesanta.clubby.lib.CmdListenerManagerBenchmark
+ */
+public final class CmdListenerManagerBenchmark {
+
+    private static final int[] THREADS = { 1, 4, 16 };
+    private static final int OPS_PER_THREAD = 2000000;
+    private static final int WINDOW = 64;
+    private static final int ROUNDS = 5;
+
+    /**
+     * Operations of the table under test.
+     */
+    private interface Table {
+        void add(CmdListenerWrapper<?> listenerWrapper);
+        CmdListenerWrapper<?> pop(int id);
+    }
+
+    /**
+     * The table as it was: a HashMap guarded by the monitor.
+     */
+    private static final class SyncTable implements Table {
+        private final Map<Integer, CmdListenerWrapper<?>> listeners =
+            new HashMap<Integer, CmdListenerWrapper<?>>();
+
+        @Override
+        public synchronized void add(CmdListenerWrapper<?> listenerWrapper) {
+            listeners.put(listenerWrapper.getCmdId(), listenerWrapper);
+        }
+
+        @Override
+        public synchronized CmdListenerWrapper<?> pop(int id) {
+            return listeners.remove(id);
+        }
+    }
+
+    private static final class LockFreeTable implements Table {
+        private final CmdListenerManager man = new CmdListenerManager(4096);
+
+        @Override
+        public void add(CmdListenerWrapper<?> listenerWrapper) {
+            man.addCmdListener(listenerWrapper);
+        }
+
+        @Override
+        public CmdListenerWrapper<?> pop(int id) {
+            return man.popListener(id);
+        }
+    }
+
+    private interface TableFactory {
+        Table create();
+    }
+
+    public static void main(String[] args) throws Exception {
+        TableFactory sync = new TableFactory() {
+            @Override
+            public Table create() {
+                return new SyncTable();
+            }
+        };
+        TableFactory lockFree = new TableFactory() {
+            @Override
+            public Table create() {
+                return new LockFreeTable();
+            }
+        };
+
+        // Warm-up
+        for (int threads : THREADS) {
+            run(sync.create(), threads);
+            run(lockFree.create(), threads);
+        }
+
+        System.out.printf("%8s %20s %20s%n", "threads", "synchronized HashMap", "CmdListenerManager");
+        for (int threads : THREADS) {
+            System.out.printf(
+                    "%8d %15.1f Mops/s %15.1f Mops/s%n",
+                    threads,
+                    best(sync, threads),
+                    best(lockFree, threads)
+                    );
+        }
+    }
+
+    /**
+     * Returns the best throughput of a few rounds, in millions of add+pop
+     * pairs per second.
+     */
+    private static double best(TableFactory factory, int threads) throws Exception {
+        double ret = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            ret = Math.max(ret, run(factory.create(), threads));
+        }
+        return ret;
+    }
+
+    private static double run(final Table table, int threads) throws Exception {
+        final AtomicInteger nextId = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Listeners are created upfront, so that only the table
+                    // is measured
+                    CmdListenerWrapper<?>[] window = new CmdListenerWrapper<?>[WINDOW];
+                    for (int i = 0; i < WINDOW; i++) {
+                        window[i] = new CmdListenerWrapper<Object>(
+                                new CmdAdapter<Object>(), null, "//dst"
+                                );
+                    }
+
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        CmdListenerWrapper<?> l = window[i % WINDOW];
+                        if (i >= WINDOW) {
+                            table.pop(l.getCmdId());
+                        }
+                        l.setCmdId(nextId.incrementAndGet());
+                        table.add(l);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long nanos = System.nanoTime() - startTime;
+
+        return (double) OPS_PER_THREAD * threads / nanos * 1000;
+    }
+
+}
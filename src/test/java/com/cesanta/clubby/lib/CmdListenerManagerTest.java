@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CmdListenerManagerTest {
+
+    private static CmdListenerWrapper<Object> createListener(int cmdId) {
+        CmdListenerWrapper<Object> ret = new CmdListenerWrapper<Object>(
+                new CmdAdapter<Object>(), null, "//dst"
+                );
+        ret.setCmdId(cmdId);
+        return ret;
+    }
+
+    @Test
+    public void addAndPop() {
+        CmdListenerManager man = new CmdListenerManager(4);
+        CmdListenerWrapper<?> l = createListener(1);
+
+        assertTrue(man.addCmdListener(l));
+        assertTrue(man.isPending(1));
+        assertEquals(1, man.getPendingCount());
+
+        assertSame(l, man.popListener(1));
+        assertNull(man.popListener(1));
+        assertFalse(man.isPending(1));
+        assertEquals(0, man.getPendingCount());
+    }
+
+    @Test
+    public void duplicateIdIsRejected() {
+        CmdListenerManager man = new CmdListenerManager(4);
+        CmdListenerWrapper<?> l = createListener(1);
+
+        assertTrue(man.addCmdListener(l));
+        assertFalse(man.addCmdListener(createListener(1)));
+        assertSame(l, man.getListener(1));
+        assertEquals(1, man.getPendingCount());
+    }
+
+    @Test
+    public void slotCollisionGoesToOverflow() {
+        CmdListenerManager man = new CmdListenerManager(4);
+        CmdListenerWrapper<?> l1 = createListener(1);
+        // The same slot as 1
+        CmdListenerWrapper<?> l5 = createListener(5);
+        CmdListenerWrapper<?> l9 = createListener(9);
+
+        assertTrue(man.addCmdListener(l1));
+        assertTrue(man.addCmdListener(l5));
+        assertTrue(man.addCmdListener(l9));
+        assertEquals(3, man.getPendingCount());
+        assertEquals(3, man.getPending().size());
+
+        // Duplicate of the overflowed one
+        assertFalse(man.addCmdListener(createListener(5)));
+
+        assertSame(l5, man.popListener(5));
+        assertSame(l1, man.popListener(1));
+
+        // The slot is free again, while 9 is still in the overflow map
+        CmdListenerWrapper<?> l13 = createListener(13);
+        assertTrue(man.addCmdListener(l13));
+        assertFalse(man.addCmdListener(createListener(9)));
+
+        assertSame(l9, man.popListener(9));
+        assertSame(l13, man.popListener(13));
+        assertNull(man.popListener(9));
+        assertEquals(0, man.getPendingCount());
+        assertTrue(man.getPending().isEmpty());
+    }
+
+    @Test
+    public void idsWrapAround() {
+        CmdListenerManager man = new CmdListenerManager(4);
+
+        // Ids as they are allocated around the wraparound
+        int[] ids = {
+            Integer.MAX_VALUE - 1,
+            Integer.MAX_VALUE,
+            Integer.MIN_VALUE,
+            Integer.MIN_VALUE + 1,
+        };
+        List<CmdListenerWrapper<?>> listeners = new ArrayList<CmdListenerWrapper<?>>();
+        for (int id : ids) {
+            CmdListenerWrapper<?> l = createListener(id);
+            listeners.add(l);
+            assertTrue(man.addCmdListener(l));
+        }
+        assertEquals(ids.length, man.getPendingCount());
+
+        for (int i = 0; i < ids.length; i++) {
+            assertSame(listeners.get(i), man.popListener(ids[i]));
+        }
+        assertEquals(0, man.getPendingCount());
+    }
+
+    @Test
+    public void collisionThenOverflowThenPopAfterWraparound() {
+        CmdListenerManager man = new CmdListenerManager(4);
+
+        // An old command stays pending in the slot of MAX_VALUE ...
+        CmdListenerWrapper<?> old = createListener(Integer.MAX_VALUE);
+        assertTrue(man.addCmdListener(old));
+
+        // ... ids wrap around, and a new one lands on the same slot
+        int newId = Integer.MIN_VALUE + 3;
+        assertEquals(Integer.MAX_VALUE & 3, newId & 3);
+        CmdListenerWrapper<?> l = createListener(newId);
+        assertTrue(man.addCmdListener(l));
+        assertSame(l, man.getListener(newId));
+        assertSame(old, man.getListener(Integer.MAX_VALUE));
+
+        assertSame(l, man.popListener(newId));
+        assertNull(man.popListener(newId));
+        assertSame(old, man.popListener(Integer.MAX_VALUE));
+        assertEquals(0, man.getPendingCount());
+
+        // Once the id comes around again, it can be used
+        assertTrue(man.addCmdListener(createListener(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void concurrentAddAndPop() throws Exception {
+        final CmdListenerManager man = new CmdListenerManager(64);
+        final AtomicInteger nextId = new AtomicInteger(Integer.MAX_VALUE - 50000);
+        final AtomicInteger lost = new AtomicInteger(0);
+        final int threadsCnt = 8;
+        final CountDownLatch done = new CountDownLatch(threadsCnt);
+
+        for (int t = 0; t < threadsCnt; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Several pending per thread, so that slots collide
+                    int[] pending = new int[32];
+                    for (int i = 0; i < 20000; i++) {
+                        int idx = i % pending.length;
+                        if (i >= pending.length
+                                && man.popListener(pending[idx]) == null) {
+                            lost.incrementAndGet();
+                        }
+                        int id = nextId.getAndIncrement();
+                        if (!man.addCmdListener(createListener(id))) {
+                            lost.incrementAndGet();
+                        }
+                        pending[idx] = id;
+                    }
+                    for (int id : pending) {
+                        if (man.popListener(id) == null) {
+                            lost.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        done.await();
+        assertEquals(0, lost.get());
+        assertEquals(0, man.getPendingCount());
+        assertTrue(man.getPending().isEmpty());
+    }
+
+}
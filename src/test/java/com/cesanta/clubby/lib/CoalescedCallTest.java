@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CoalescedCallTest {
+
+    /**
+     * Listener which records its single outcome.
+     */
+    private static final class Waiter extends CmdAdapter<Object> {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Object resp = null;
+        volatile int status = -1;
+        volatile String statusMsg = null;
+
+        @Override
+        public void onResponse(Object resp) {
+            this.resp = resp;
+            this.status = 0;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(int status, String statusMsg) {
+            this.status = status;
+            this.statusMsg = statusMsg;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("no outcome", done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static Map<String, Object> args(int n) {
+        return Collections.<String, Object>singletonMap("n", n);
+    }
+
+    /**
+     * Makes `cnt` identical calls concurrently; returns the id of the
+     * command they share.
+     */
+    private static int callConcurrently(
+            final Clubby clubby,
+            final ClubbyOptions opts,
+            final List<Waiter> waiters,
+            int cnt
+            ) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(cnt);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < cnt; i++) {
+            final Waiter waiter = new Waiter();
+            waiters.add(waiter);
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    clubby.call("//dev", "Get", args(1), waiter, Object.class, opts);
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals("calls must share one command", 1, clubby.getPendingCount());
+        assertEquals(1, clubby.getSendQueueDepth());
+        return OfflineClubby.lastCmdId(clubby);
+    }
+
+    @Test
+    public void waitersShareResponse() throws Exception {
+        Clubby clubby = OfflineClubby.create();
+        try {
+            ClubbyOptions opts = OfflineClubby.options(clubby).coalesce(true);
+            List<Waiter> waiters = new ArrayList<Waiter>();
+            int id = callConcurrently(clubby, opts, waiters, 8);
+
+            OfflineClubby.respond(clubby, id, "\"resp\":{\"v\":42}");
+            for (Waiter waiter : waiters) {
+                waiter.await();
+                assertEquals(0, waiter.status);
+                assertEquals(Collections.singletonMap("v", 42), waiter.resp);
+            }
+            assertEquals(0, clubby.getPendingCount());
+
+            // The call is done, so the next identical one sends a new command
+            Waiter next = new Waiter();
+            clubby.call("//dev", "Get", args(1), next, Object.class, opts);
+            assertTrue(OfflineClubby.lastCmdId(clubby) != id);
+            assertEquals(1, clubby.getPendingCount());
+            assertEquals(2, clubby.getSendQueueDepth());
+        } finally {
+            clubby.close();
+        }
+    }
+
+    @Test
+    public void waitersShareFailure() throws Exception {
+        Clubby clubby = OfflineClubby.create();
+        try {
+            ClubbyOptions opts = OfflineClubby.options(clubby).coalesce(true);
+            List<Waiter> waiters = new ArrayList<Waiter>();
+            int id = callConcurrently(clubby, opts, waiters, 8);
+
+            OfflineClubby.respond(clubby, id, "\"status\":500,\"status_msg\":\"boom\"");
+            for (Waiter waiter : waiters) {
+                waiter.await();
+                assertEquals(500, waiter.status);
+                assertEquals("boom", waiter.statusMsg);
+                assertNull(waiter.resp);
+            }
+            assertEquals(0, clubby.getPendingCount());
+        } finally {
+            clubby.close();
+        }
+    }
+
+    @Test
+    public void waitersShareTimeout() throws Exception {
+        Clubby clubby = OfflineClubby.create();
+        try {
+            ClubbyOptions opts = OfflineClubby.options(clubby)
+                .coalesce(true)
+                .timeoutMillis(100);
+            List<Waiter> waiters = new ArrayList<Waiter>();
+            callConcurrently(clubby, opts, waiters, 8);
+
+            for (Waiter waiter : waiters) {
+                waiter.await();
+                assertEquals(ClubbyStatus.TIMEOUT, waiter.status);
+            }
+            assertEquals(0, clubby.getPendingCount());
+        } finally {
+            clubby.close();
+        }
+    }
+
+    @Test
+    public void differentCallsAreNotShared() throws Exception {
+        Clubby clubby = OfflineClubby.create();
+        try {
+            ClubbyOptions opts = OfflineClubby.options(clubby).coalesce(true);
+            Waiter w1 = new Waiter();
+            Waiter w2 = new Waiter();
+            Waiter w3 = new Waiter();
+            Waiter w4 = new Waiter();
+            clubby.call("//dev", "Get", args(1), w1, Object.class, opts);
+            int id1 = OfflineClubby.lastCmdId(clubby);
+            clubby.call("//dev", "Get", args(2), w2, Object.class, opts);
+            int id2 = OfflineClubby.lastCmdId(clubby);
+            clubby.call("//other", "Get", args(1), w3, Object.class, opts);
+            clubby.call("//dev", "Get", args(1), w4, Object.class,
+                    OfflineClubby.options(clubby));
+
+            assertTrue(id1 != id2);
+            assertEquals(4, clubby.getPendingCount());
+
+            OfflineClubby.respond(clubby, id1, "\"resp\":1");
+            w1.await();
+            assertEquals(1, w1.resp);
+            assertEquals(1, w2.done.getCount());
+            assertEquals(1, w4.done.getCount());
+        } finally {
+            clubby.close();
+        }
+    }
+
+    @Test
+    public void cancelledWaiterLeaves() throws Exception {
+        Clubby clubby = OfflineClubby.create();
+        try {
+            ClubbyOptions opts = OfflineClubby.options(clubby).coalesce(true);
+            CompletableFuture<Object> f1 =
+                clubby.callAsync("//dev", "Get", args(1), Object.class, opts);
+            CompletableFuture<Object> f2 =
+                clubby.callAsync("//dev", "Get", args(1), Object.class, opts);
+            assertEquals(1, clubby.getPendingCount());
+
+            // The command stays while somebody waits for it
+            assertTrue(f1.cancel(false));
+            assertEquals(1, clubby.getPendingCount());
+            assertTrue(f2.cancel(false));
+            assertEquals(0, clubby.getPendingCount());
+        } finally {
+            clubby.close();
+        }
+    }
+
+    @Test
+    public void listenerFailureDoesNotStopOthers() {
+        ConcurrentMap<CoalescedCall.Key, CoalescedCall<?>> calls =
+            new ConcurrentHashMap<CoalescedCall.Key, CoalescedCall<?>>();
+        CoalescedCall.Key key = new CoalescedCall.Key("me", "//dev", "Get", "{}", Object.class);
+
+        CmdListener<Object> failing = new CmdAdapter<Object>() {
+            @Override
+            public void onResponse(Object resp) {
+                throw new IllegalStateException("test");
+            }
+        };
+        Waiter waiter = new Waiter();
+        CoalescedCall<Object> call = new CoalescedCall<Object>(calls, key, failing);
+        calls.put(key, call);
+        assertTrue(call.join(waiter));
+
+        try {
+            call.onResponse("resp");
+            throw new AssertionError("failure of the listener must be rethrown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals("resp", waiter.resp);
+        assertTrue(calls.isEmpty());
+        assertFalse(call.join(new Waiter()));
+    }
+
+}
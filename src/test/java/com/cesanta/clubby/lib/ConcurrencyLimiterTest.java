@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+
+    /**
+     * Executor which just collects the tasks, so that the test runs them.
+     */
+    private static final class QueueExecutor implements CallbackExecutor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(String dst, Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            List<Runnable> cur = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            for (Runnable task : cur) {
+                task.run();
+            }
+        }
+    }
+
+    private static Runnable counter(final AtomicInteger cnt) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                cnt.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void idleDstIsDropped() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new QueueExecutor());
+        AtomicInteger sent = new AtomicInteger();
+
+        ConcurrencyLimiter.Permit p1 = limiter.createPermit("//a", counter(sent));
+        ConcurrencyLimiter.Permit p2 = limiter.createPermit("//b", counter(sent));
+        assertTrue(limiter.acquire(p1, 1, false, 0));
+        assertTrue(limiter.acquire(p2, 1, true, 0));
+        assertEquals(2, sent.get());
+        assertEquals(2, limiter.getDstCount());
+
+        p1.release(0);
+        assertEquals(1, limiter.getDstCount());
+        p2.release();
+        assertEquals(0, limiter.getDstCount());
+
+        // Released twice, nothing changes
+        p2.release(0);
+        assertEquals(0, limiter.getDstCount());
+
+        // The destination is tracked again by the next command
+        ConcurrencyLimiter.Permit p3 = limiter.createPermit("//a", counter(sent));
+        assertTrue(limiter.acquire(p3, 1, false, 0));
+        assertEquals(1, limiter.getDstCount());
+        p3.release(0);
+        assertEquals(0, limiter.getDstCount());
+    }
+
+    @Test
+    public void waitingCommandIsSentByExecutor() {
+        QueueExecutor executor = new QueueExecutor();
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(executor);
+        AtomicInteger sent = new AtomicInteger();
+
+        ConcurrencyLimiter.Permit p1 = limiter.createPermit("//a", counter(sent));
+        ConcurrencyLimiter.Permit p2 = limiter.createPermit("//a", counter(sent));
+        assertTrue(limiter.acquire(p1, 1, false, 1));
+        assertTrue(limiter.acquire(p2, 1, false, 1));
+        assertEquals(1, sent.get());
+
+        p1.release(0);
+        assertEquals("must not be sent by the releasing thread", 1, sent.get());
+        assertEquals(1, executor.tasks.size());
+        assertEquals(1, limiter.getDstCount());
+
+        executor.runAll();
+        assertEquals(2, sent.get());
+
+        p2.release(0);
+        assertEquals(0, limiter.getDstCount());
+    }
+
+    @Test
+    public void rejectedPermitIsDropped() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new QueueExecutor());
+        AtomicInteger sent = new AtomicInteger();
+
+        ConcurrencyLimiter.Permit p1 = limiter.createPermit("//a", counter(sent));
+        ConcurrencyLimiter.Permit p2 = limiter.createPermit("//a", counter(sent));
+        assertTrue(limiter.acquire(p1, 1, false, 0));
+        assertFalse(limiter.acquire(p2, 1, false, 0));
+
+        p2.release(ClubbyStatus.TOO_MANY_IN_FLIGHT);
+        assertEquals(1, limiter.getDstCount());
+        p1.release(0);
+        assertEquals(0, limiter.getDstCount());
+        assertEquals(1, sent.get());
+    }
+
+    @Test
+    public void permitReleasedBeforeAcquireIsNotSent() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new QueueExecutor());
+        AtomicInteger sent = new AtomicInteger();
+
+        ConcurrencyLimiter.Permit p = limiter.createPermit("//a", counter(sent));
+        p.release(ClubbyStatus.TIMEOUT);
+        assertTrue(limiter.acquire(p, 1, false, 0));
+
+        assertEquals(0, sent.get());
+        assertEquals(0, limiter.getDstCount());
+    }
+
+    @Test
+    public void waitingPermitReleasedIsNotSent() {
+        QueueExecutor executor = new QueueExecutor();
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(executor);
+        AtomicInteger sent = new AtomicInteger();
+
+        ConcurrencyLimiter.Permit p1 = limiter.createPermit("//a", counter(sent));
+        ConcurrencyLimiter.Permit p2 = limiter.createPermit("//a", counter(sent));
+        assertTrue(limiter.acquire(p1, 1, false, 1));
+        assertTrue(limiter.acquire(p2, 1, false, 1));
+
+        p2.release();
+        p1.release(0);
+        assertEquals(0, executor.tasks.size());
+        assertEquals(1, sent.get());
+        assertEquals(0, limiter.getDstCount());
+    }
+
+}
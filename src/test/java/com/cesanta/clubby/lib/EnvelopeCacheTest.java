@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.cesanta.clubby.lib.Clubby.JsonCmd;
+import com.cesanta.clubby.lib.Clubby.JsonFrame;
+import com.cesanta.clubby.lib.Clubby.JsonResp;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+public class EnvelopeCacheTest {
+
+    private static final FrameCodec JSON = FrameCodec.createJson();
+    private static final FrameCodec CBOR = new FrameCodec("cbor", new CBORFactory());
+
+    private static JsonFrame createFrame(String src, String dst, String key, JsonCmd... cmds) {
+        JsonFrame frame = new JsonFrame();
+        frame.src = src;
+        frame.dst = dst;
+        frame.key = key;
+        frame.cmds = new ArrayList<JsonCmd>(Arrays.asList(cmds));
+        return frame;
+    }
+
+    private static JsonCmd createCmd(int id) {
+        Map<String, Object> args = new HashMap<String, Object>();
+        args.put("list", Arrays.asList(1, 2, 3));
+        args.put("empty", Collections.emptyList());
+        args.put("str", "[]");
+        return new JsonCmd("Cmd" + id, id, args);
+    }
+
+    /**
+     * Asserts that the frame is encoded by the cache exactly as a whole
+     */
+    private static void assertSameEncoding(
+            EnvelopeCache cache,
+            FrameCodec codec,
+            JsonFrame frame
+            ) throws JsonProcessingException {
+        byte[] expected = codec.encode(frame);
+        byte[] actual = cache.encode(codec, frame);
+        assertTrue(
+                "got " + new String(actual) + ", expected " + new String(expected),
+                Arrays.equals(expected, actual)
+                );
+    }
+
+    private static void assertSameEncoding(EnvelopeCache cache, JsonFrame frame)
+        throws JsonProcessingException
+    {
+        assertSameEncoding(cache, JSON, frame);
+        assertSameEncoding(cache, CBOR, frame);
+    }
+
+    @Test
+    public void sameAsWholeFrame() throws JsonProcessingException {
+        EnvelopeCache cache = new EnvelopeCache(16);
+
+        // Twice, so that the cached envelope is used
+        for (int i = 0; i < 2; i++) {
+            assertSameEncoding(cache, createFrame("me", "//dev", "k", createCmd(1)));
+            assertSameEncoding(cache, createFrame(
+                        "me", "//dev", "k", createCmd(1), createCmd(2), createCmd(3)
+                        ));
+            assertSameEncoding(cache, createFrame("me", "//dev", null, createCmd(1)));
+            assertSameEncoding(cache, createFrame("me", "//dev", "k"));
+        }
+    }
+
+    @Test
+    public void fieldsContainingEmptyArray() throws JsonProcessingException {
+        EnvelopeCache cache = new EnvelopeCache(16);
+
+        for (int i = 0; i < 2; i++) {
+            assertSameEncoding(cache, createFrame("[]", "//[]", "[]", createCmd(1)));
+            assertSameEncoding(cache, createFrame(
+                        "me", "\"cmds\":[]}", "k[]\"cmds\":[]", createCmd(2)
+                        ));
+        }
+    }
+
+    @Test
+    public void changeOfEnvelopeOnSameRoute() throws JsonProcessingException {
+        EnvelopeCache cache = new EnvelopeCache(16);
+
+        assertSameEncoding(cache, createFrame("me", "//dev", "k1", createCmd(1)));
+        assertSameEncoding(cache, createFrame("me", "//dev", "k2", createCmd(2)));
+        assertSameEncoding(cache, createFrame("me", "//dev", null, createCmd(3)));
+        assertSameEncoding(cache, createFrame("me", "//dev", "k1", createCmd(4)));
+
+        JsonFrame v2 = createFrame("me", "//dev", "k1", createCmd(5));
+        v2.v = 2;
+        assertSameEncoding(cache, v2);
+        assertSameEncoding(cache, createFrame("me", "//dev", "k1", createCmd(6)));
+    }
+
+    @Test
+    public void ambiguousRoutes() throws JsonProcessingException {
+        EnvelopeCache cache = new EnvelopeCache(16);
+
+        // Both routes make the same cache key
+        assertSameEncoding(cache, createFrame("a b", "c", "k", createCmd(1)));
+        assertSameEncoding(cache, createFrame("a", "b c", "k", createCmd(2)));
+        assertSameEncoding(cache, createFrame("a b", "c", "k", createCmd(3)));
+    }
+
+    @Test
+    public void evictedAndDisabled() throws JsonProcessingException {
+        EnvelopeCache cache = new EnvelopeCache(1);
+        for (int i = 0; i < 4; i++) {
+            assertSameEncoding(cache, createFrame("me", "//dev" + (i % 2), "k", createCmd(i)));
+        }
+
+        EnvelopeCache disabled = new EnvelopeCache(0);
+        for (int i = 0; i < 2; i++) {
+            assertSameEncoding(disabled, createFrame("me", "//dev", "k", createCmd(i)));
+        }
+    }
+
+    @Test
+    public void responseFrame() throws JsonProcessingException {
+        EnvelopeCache cache = new EnvelopeCache(16);
+
+        JsonFrame frame = new JsonFrame();
+        frame.src = "me";
+        frame.dst = "//dev";
+        frame.resp = new ArrayList<JsonResp>();
+        assertSameEncoding(cache, frame);
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Compares decoding of the incoming response frames: the old triple pass
+ * (whole frame into the Object tree, each `resp` written back to a string,
+ * and parsed again into the response type) against {@link FrameDecoder}
+ * binding the buffered `resp` with a cached {@link ObjectReader}.
+ *
+ * Reports time and allocated bytes per frame, as measured for the current
+ * thread. Not run by the build; run it with the test classpath:
+ *
+ *     java -cp target/classes:target/test-classes:<deps> \
+ *         com.cesanta.clubby.lib.FrameDecoderBenchmark [respsPerFrame]
+ */
+public final class FrameDecoderBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+    private static final int FRAMES_PER_ROUND = 20000;
+
+    /**
+     * Response type the listeners ask for.
+     */
+    public static final class Reading {
+        public String sensor;
+        public long seq;
+        public double[] values;
+        public Map<String, String> tags;
+    }
+
+    /*
+     * Frame and response as they were decoded before FrameDecoder
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static final class OldFrame {
+        public int v;
+        public String src;
+        public String dst;
+        public List<OldResp> resp;
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static final class OldResp {
+        public int id;
+        public int status;
+        public String status_msg;
+        public Object resp;
+    }
+
+    private final FrameCodec codec = FrameCodec.createJson();
+    private final ObjectMapper mapper = codec.getMapper();
+    private final ObjectReader oldFrameReader = mapper.readerFor(OldFrame.class);
+    private final ObjectReader readingReader = mapper.readerFor(Reading.class);
+    private final String frame;
+
+    /* Keeps the results reachable, so that the work isn't optimized away */
+    private long sink = 0;
+
+    private FrameDecoderBenchmark(int respsPerFrame) throws Exception {
+        frame = createFrame(respsPerFrame);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int respsPerFrame = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        FrameDecoderBenchmark bench = new FrameDecoderBenchmark(respsPerFrame);
+
+        System.out.println("Frame: " + bench.frame.length() + " bytes, "
+                + respsPerFrame + " responses");
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            bench.runOld(FRAMES_PER_ROUND);
+            bench.runNew(FRAMES_PER_ROUND);
+        }
+
+        bench.report("triple pass", new Runnable() {
+            @Override
+            public void run() {
+                bench.runOld(FRAMES_PER_ROUND);
+            }
+        });
+        bench.report("FrameDecoder", new Runnable() {
+            @Override
+            public void run() {
+                bench.runNew(FRAMES_PER_ROUND);
+            }
+        });
+
+        System.out.println("(sink " + bench.sink + ")");
+    }
+
+    private void report(String name, Runnable round) {
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            round.run();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            bestBytes = Math.min(bestBytes, allocatedBytes() - bytes);
+        }
+        System.out.printf(
+                "%-14s %10.0f ns/frame %10d B/frame%n",
+                name,
+                (double) bestNanos / FRAMES_PER_ROUND,
+                bestBytes / FRAMES_PER_ROUND
+                );
+    }
+
+    private void runOld(int frames) {
+        try {
+            for (int i = 0; i < frames; i++) {
+                OldFrame f = oldFrameReader.readValue(frame);
+                for (OldResp r : f.resp) {
+                    String respStr = mapper.writeValueAsString(r.resp);
+                    Reading reading = mapper.readValue(respStr, Reading.class);
+                    sink += reading.seq;
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void runNew(int frames) {
+        FrameDecoder.Handler handler = new FrameDecoder.Handler() {
+            @Override
+            public boolean isWanted(String dst, int id) {
+                return true;
+            }
+
+            @Override
+            public void onResp(
+                    String dst, int id, int status, String statusMsg, TokenBuffer resp
+                    ) {
+                try {
+                    Reading reading = readingReader.readValue(resp.asParser());
+                    sink += reading.seq;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void onCmds(String src, String dst, List<FrameDecoder.Cmd> cmds) {
+            }
+        };
+
+        try {
+            for (int i = 0; i < frames; i++) {
+                FrameDecoder.decode(codec.createParser(frame), handler);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String createFrame(int respsPerFrame) throws Exception {
+        Map<String, Object> f = new HashMap<String, Object>();
+        f.put("v", 1);
+        f.put("src", "//api.example.com");
+        f.put("dst", "//d/device1");
+
+        List<Object> resps = new ArrayList<Object>();
+        for (int i = 0; i < respsPerFrame; i++) {
+            Reading reading = new Reading();
+            reading.sensor = "temperature-" + i;
+            reading.seq = 1000 + i;
+            reading.values = new double[] { 21.5, 21.7, 21.6, 21.9 };
+            reading.tags = new HashMap<String, String>();
+            reading.tags.put("room", "lab");
+            reading.tags.put("unit", "C");
+
+            Map<String, Object> resp = new HashMap<String, Object>();
+            resp.put("id", 100 + i);
+            resp.put("status", 0);
+            resp.put("resp", reading);
+            resps.add(resp);
+        }
+        f.put("resp", resps);
+
+        return mapper.writeValueAsString(f);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+public class FrameDecoderTest {
+
+    private static final FrameCodec CODEC = FrameCodec.createJson();
+    private static final ObjectMapper MAPPER = CODEC.getMapper();
+
+    /**
+     * Handler which records everything, as strings
+     */
+    private static final class Recorder implements FrameDecoder.Handler {
+        final Set<Integer> unwanted = new HashSet<Integer>();
+        final List<String> resps = new ArrayList<String>();
+        final List<Integer> asked = new ArrayList<Integer>();
+        String cmdsSrc = null;
+        String cmdsDst = null;
+        List<FrameDecoder.Cmd> cmds = null;
+
+        @Override
+        public boolean isWanted(String dst, int id) {
+            asked.add(id);
+            return !unwanted.contains(id);
+        }
+
+        @Override
+        public void onResp(
+                String dst,
+                int id,
+                int status,
+                String statusMsg,
+                TokenBuffer resp
+                ) {
+            resps.add(dst + " " + id + " " + status + " " + statusMsg + " " + toJson(resp));
+        }
+
+        @Override
+        public void onCmds(String src, String dst, List<FrameDecoder.Cmd> cmds) {
+            this.cmdsSrc = src;
+            this.cmdsDst = dst;
+            this.cmds = cmds;
+        }
+    }
+
+    private static String toJson(TokenBuffer buf) {
+        if (buf == null) {
+            return null;
+        }
+        try {
+            return MAPPER.writeValueAsString(MAPPER.readTree(buf.asParser()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Recorder decode(String frame, Recorder recorder) throws IOException {
+        JsonParser p = CODEC.createParser(frame);
+        FrameDecoder.decode(p, recorder);
+        assertTrue("parser must be closed", p.isClosed());
+        return recorder;
+    }
+
+    private static Recorder decode(String frame) throws IOException {
+        return decode(frame, new Recorder());
+    }
+
+    @Test
+    public void responsesAfterDst() throws IOException {
+        Recorder r = decode("{\"v\":1,\"src\":\"srv\",\"dst\":\"me\",\"resp\":["
+                + "{\"id\":1,\"status\":0,\"status_msg\":\"\",\"resp\":{\"a\":[1,2]}},"
+                + "{\"id\":2,\"status\":500,\"status_msg\":\"boom\"},"
+                + "{\"id\":3,\"resp\":null},"
+                + "{\"id\":4,\"resp\":\"str\"}"
+                + "]}");
+
+        assertEquals(4, r.resps.size());
+        assertEquals("me 1 0  {\"a\":[1,2]}", r.resps.get(0));
+        assertEquals("me 2 500 boom null", r.resps.get(1));
+        assertEquals("me 3 0  null", r.resps.get(2));
+        assertEquals("me 4 0  \"str\"", r.resps.get(3));
+        assertNull(r.cmds);
+    }
+
+    @Test
+    public void responsesBeforeDst() throws IOException {
+        Recorder r = decode("{\"resp\":[{\"id\":1,\"resp\":[true]}],"
+                + "\"src\":\"srv\",\"dst\":\"me\",\"v\":1}");
+
+        assertEquals(1, r.resps.size());
+        assertEquals("me 1 0  [true]", r.resps.get(0));
+    }
+
+    @Test
+    public void missingDstIsEmpty() throws IOException {
+        Recorder r = decode("{\"resp\":[{\"id\":1}]}");
+        assertEquals(" 1 0  null", r.resps.get(0));
+    }
+
+    @Test
+    public void fieldsOfResponseInAnyOrder() throws IOException {
+        Recorder r = decode("{\"dst\":\"me\",\"resp\":["
+                + "{\"resp\":{\"x\":1},\"status_msg\":\"m\",\"status\":7,\"id\":5}"
+                + "]}");
+
+        assertEquals("me 5 7 m {\"x\":1}", r.resps.get(0));
+    }
+
+    @Test
+    public void unwantedPayloadsAreSkipped() throws IOException {
+        Recorder recorder = new Recorder();
+        recorder.unwanted.add(1);
+        recorder.unwanted.add(2);
+        Recorder r = decode("{\"dst\":\"me\",\"resp\":["
+                + "{\"id\":1,\"resp\":{\"big\":[1,2,{\"resp\":[{\"id\":9}]}]}},"
+                // Payload before the id has to be buffered, and then dropped
+                + "{\"resp\":[1,2,3],\"id\":2},"
+                + "{\"id\":3,\"resp\":42}"
+                + "]}", recorder);
+
+        assertEquals(3, r.asked.size());
+        assertEquals(1, r.resps.size());
+        assertEquals("me 3 0  42", r.resps.get(0));
+    }
+
+    @Test
+    public void unknownFieldsAreIgnored() throws IOException {
+        Recorder r = decode("{\"v\":1,\"extra\":{\"resp\":[{\"id\":9}],\"dst\":\"x\"},"
+                + "\"list\":[[{}],null],\"dst\":\"me\",\"resp\":["
+                + "{\"id\":1,\"trace\":{\"id\":2},\"resp\":1,\"more\":[1]}"
+                + "],\"cmds\":[{\"cmd\":\"C\",\"id\":3,\"meta\":{\"args\":1}}],"
+                + "\"tail\":\"x\"}");
+
+        assertEquals(1, r.resps.size());
+        assertEquals("me 1 0  1", r.resps.get(0));
+        assertEquals(1, r.cmds.size());
+        assertEquals("C", r.cmds.get(0).cmd);
+        assertNull(r.cmds.get(0).args);
+    }
+
+    @Test
+    public void commandsWithSrcAfterThem() throws IOException {
+        Recorder r = decode("{\"dst\":\"me\",\"cmds\":["
+                + "{\"cmd\":\"Get\",\"id\":1,\"args\":{\"k\":[1]}},"
+                + "{\"id\":2,\"cmd\":\"Put\",\"args\":null}"
+                + "],\"src\":\"peer\"}");
+
+        assertEquals("peer", r.cmdsSrc);
+        assertEquals("me", r.cmdsDst);
+        assertEquals(2, r.cmds.size());
+        assertEquals("Get", r.cmds.get(0).cmd);
+        assertEquals(1, r.cmds.get(0).id);
+        assertEquals("{\"k\":[1]}", toJson(r.cmds.get(0).args));
+        assertEquals("Put", r.cmds.get(1).cmd);
+        assertNull(r.cmds.get(1).args);
+        assertFalse(r.cmds.get(1).hasDeadline);
+    }
+
+    @Test
+    public void emptyCommandsAreNotHandedOver() throws IOException {
+        Recorder r = decode("{\"src\":\"peer\",\"dst\":\"me\",\"cmds\":[]}");
+        assertNull(r.cmds);
+    }
+
+    @Test
+    public void commandTimeouts() throws Exception {
+        long before = System.nanoTime();
+        Recorder r = decode("{\"src\":\"peer\",\"dst\":\"me\",\"cmds\":["
+                + "{\"cmd\":\"Ms\",\"id\":1,\"timeout\":100,\"timeout_ms\":250},"
+                + "{\"cmd\":\"Secs\",\"id\":2,\"timeout\":3},"
+                + "{\"cmd\":\"None\",\"id\":3,\"timeout_ms\":0},"
+                + "{\"cmd\":\"Expired\",\"id\":4,\"timeout_ms\":1}"
+                + "]}");
+        long after = System.nanoTime();
+
+        assertDeadline(r.cmds.get(0), before, after, TimeUnit.MILLISECONDS.toNanos(250));
+        assertDeadline(r.cmds.get(1), before, after, TimeUnit.SECONDS.toNanos(3));
+        assertFalse(r.cmds.get(2).hasDeadline);
+        assertFalse(r.cmds.get(2).isExpired());
+
+        Thread.sleep(5);
+        assertTrue(r.cmds.get(3).isExpired());
+        assertFalse(r.cmds.get(1).isExpired());
+    }
+
+    private static void assertDeadline(
+            FrameDecoder.Cmd cmd,
+            long before,
+            long after,
+            long timeoutNanos
+            ) {
+        assertTrue(cmd.hasDeadline);
+        assertTrue(cmd.deadline - (before + timeoutNanos) >= 0);
+        assertTrue(cmd.deadline - (after + timeoutNanos) <= 0);
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void frameIsNotAnObject() throws IOException {
+        decode("[{\"dst\":\"me\"}]");
+    }
+
+    @Test
+    public void truncatedFrame() throws IOException {
+        Recorder r = new Recorder();
+        JsonParser p = CODEC.createParser("{\"dst\":\"me\",\"resp\":[{\"id\":1,\"resp\":{\"a\":");
+        try {
+            FrameDecoder.decode(p, r);
+            fail("truncated frame must fail");
+        } catch (JsonParseException e) {
+            // Expected
+        }
+        assertTrue(p.isClosed());
+        assertTrue(r.resps.isEmpty());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void invalidJson() throws IOException {
+        decode("{\"dst\":\"me\",\"resp\":[{\"id\":1,,}]}");
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HedgeTrackerTest {
+
+    @Test
+    public void percentileNeedsEnoughSamples() {
+        HedgeTracker tracker = new HedgeTracker(4);
+        assertEquals(-1, tracker.onCall("//a", 0.9, 0.1));
+
+        for (int i = 1; i <= 100; i++) {
+            tracker.record("//a", i);
+        }
+        assertEquals(90, tracker.onCall("//a", 0.9, 0.1));
+    }
+
+    @Test
+    public void hedgesArePaidFromBudget() {
+        HedgeTracker tracker = new HedgeTracker(4);
+        assertFalse(tracker.tryHedge("//a"));
+
+        // Each call earns a half of a hedge
+        tracker.onCall("//a", 0.9, 0.5);
+        assertFalse(tracker.tryHedge("//a"));
+        tracker.onCall("//a", 0.9, 0.5);
+        assertTrue(tracker.tryHedge("//a"));
+        assertFalse(tracker.tryHedge("//a"));
+        assertEquals(1, tracker.getFired());
+    }
+
+    @Test
+    public void leastRecentlyUsedDstIsDropped() {
+        HedgeTracker tracker = new HedgeTracker(2);
+        for (int i = 1; i <= 100; i++) {
+            tracker.record("//a", i);
+            tracker.record("//b", i);
+        }
+
+        // "//a" is used more recently than "//b", so "//b" goes
+        assertEquals(90, tracker.onCall("//a", 0.9, 0.1));
+        tracker.record("//c", 1);
+        assertEquals(2, tracker.getDstCount());
+
+        assertEquals(90, tracker.onCall("//a", 0.9, 0.1));
+        assertEquals(-1, tracker.onCall("//b", 0.9, 0.1));
+        assertEquals(2, tracker.getDstCount());
+    }
+
+}
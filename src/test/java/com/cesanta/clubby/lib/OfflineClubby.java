@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import java.io.IOException;
+
+/**
+ * Clubby for the tests which never gets connected: it keeps trying to
+ * reconnect (with a long backoff), so outgoing frames wait in the send queue,
+ * and commands sent with {@link #options(Clubby)} stay pending. Responses
+ * and commands are fed to it as if they came from the server.
+ */
+final class OfflineClubby {
+
+    static final String ID = "me";
+
+    private OfflineClubby() {
+    }
+
+    static Clubby.Builder builder() {
+        return new Clubby.Builder()
+            .id(ID)
+            .psk("key")
+            // Nothing listens there, so the connection fails right away
+            .serverAddress("http://127.0.0.1:1")
+            .reconnect(true)
+            .reconnectBackoff(60000, 60000);
+    }
+
+    static Clubby create(Clubby.Builder builder) {
+        Clubby clubby;
+        try {
+            clubby = builder.build();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        clubby.connect();
+        return clubby;
+    }
+
+    static Clubby create() {
+        return create(builder());
+    }
+
+    /**
+     * Returns options under which commands survive the failed connection.
+     */
+    static ClubbyOptions options(Clubby clubby) {
+        return clubby.getOptions().resendOnReconnect(true);
+    }
+
+    /**
+     * Returns id of the last command waiting in the send queue.
+     */
+    static int lastCmdId(Clubby clubby) {
+        SendQueue.Frame frame = clubby.sendQueue.peekLast();
+        if (frame == null || frame.cmdIds.length == 0) {
+            throw new IllegalStateException("no queued commands");
+        }
+        return frame.cmdIds[frame.cmdIds.length - 1];
+    }
+
+    /**
+     * Feeds the frame to the client as if it was received from the server.
+     */
+    static void receive(Clubby clubby, String frame) {
+        try {
+            clubby.wsListener.onTextMessage(null, frame);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Feeds the response to the command with the given id; `fields` are the
+     * fields of the response, besides the id.
+     */
+    static void respond(Clubby clubby, int id, String fields) {
+        receive(clubby, "{\"v\":1,\"src\":\"//srv\",\"dst\":\"" + ID + "\","
+                + "\"resp\":[{\"id\":" + id + (fields.isEmpty() ? "" : "," + fields) + "}]}");
+    }
+
+}
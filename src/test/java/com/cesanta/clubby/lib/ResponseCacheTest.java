@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+public class ResponseCacheTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static TokenBuffer tokens(Object value) throws IOException {
+        TokenBuffer buf = new TokenBuffer(MAPPER, false);
+        MAPPER.writeValue(buf, value);
+        return buf;
+    }
+
+    private static Object value(TokenBuffer buf) throws IOException {
+        return MAPPER.readValue(buf.asParser(), Object.class);
+    }
+
+    @Test
+    public void freshUntilTtl() throws Exception {
+        ResponseCache cache = new ResponseCache(16);
+        String key = cache.getKey("me", "//dev", "Get", null);
+        assertSame(ResponseCache.Result.MISS, cache.get(key).result);
+
+        cache.put(key, tokens(1), 50, 0);
+        ResponseCache.Lookup lookup = cache.get(key);
+        assertSame(ResponseCache.Result.HIT, lookup.result);
+        assertEquals(1, value(lookup.resp));
+        // Token buffer can be read again
+        assertEquals(1, value(cache.get(key).resp));
+
+        Thread.sleep(100);
+        lookup = cache.get(key);
+        assertSame(ResponseCache.Result.MISS, lookup.result);
+        assertNull(lookup.resp);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void staleWhileRevalidate() throws Exception {
+        ResponseCache cache = new ResponseCache(16);
+        String key = cache.getKey("me", "//dev", "Get", null);
+        cache.put(key, tokens(1), 50, 10000);
+        Thread.sleep(100);
+
+        // Only the first lookup is asked to refresh
+        ResponseCache.Lookup lookup = cache.get(key);
+        assertSame(ResponseCache.Result.STALE_REFRESH, lookup.result);
+        assertEquals(1, value(lookup.resp));
+        lookup = cache.get(key);
+        assertSame(ResponseCache.Result.STALE, lookup.result);
+        assertEquals(1, value(lookup.resp));
+
+        // Refreshed response is fresh again
+        cache.put(key, tokens(2), 10000, 10000);
+        lookup = cache.get(key);
+        assertSame(ResponseCache.Result.HIT, lookup.result);
+        assertEquals(2, value(lookup.resp));
+    }
+
+    @Test
+    public void failedRevalidationIsRetried() throws Exception {
+        ResponseCache cache = new ResponseCache(16);
+        String key = cache.getKey("me", "//dev", "Get", null);
+        cache.put(key, tokens(1), 0, 10000);
+
+        assertSame(ResponseCache.Result.STALE_REFRESH, cache.get(key).result);
+        assertSame(ResponseCache.Result.STALE, cache.get(key).result);
+        cache.refreshFailed(key);
+        assertSame(ResponseCache.Result.STALE_REFRESH, cache.get(key).result);
+
+        // Failure of the refresh of a dropped response is ignored
+        cache.refreshFailed(cache.getKey("me", "//dev", "Other", null));
+    }
+
+    @Test
+    public void droppedAfterStaleWindow() throws Exception {
+        ResponseCache cache = new ResponseCache(16);
+        String key = cache.getKey("me", "//dev", "Get", null);
+        cache.put(key, tokens(1), 20, 30);
+        Thread.sleep(100);
+        assertSame(ResponseCache.Result.MISS, cache.get(key).result);
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        ResponseCache cache = new ResponseCache(2);
+        cache.put("a", tokens(1), 10000, 0);
+        cache.put("b", tokens(2), 10000, 0);
+        cache.get("a");
+        cache.put("c", tokens(3), 10000, 0);
+
+        assertSame(ResponseCache.Result.HIT, cache.get("a").result);
+        assertSame(ResponseCache.Result.MISS, cache.get("b").result);
+        assertSame(ResponseCache.Result.HIT, cache.get("c").result);
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void keyDoesNotDependOnOrderOfArgs() {
+        ResponseCache cache = new ResponseCache(16);
+        Map<String, Object> args1 = new LinkedHashMap<String, Object>();
+        args1.put("a", 1);
+        args1.put("b", 2);
+        Map<String, Object> args2 = new LinkedHashMap<String, Object>();
+        args2.put("b", 2);
+        args2.put("a", 1);
+
+        assertEquals(
+                cache.getKey("me", "//dev", "Get", args1),
+                cache.getKey("me", "//dev", "Get", args2)
+                );
+        assertTrue(!cache.getKey("me", "//dev", "Get", args1)
+                .equals(cache.getKey("me", "//dev2", "Get", args1)));
+        assertNull(cache.getKey("me", "//dev", "Get", new Object() {
+            @SuppressWarnings("unused")
+            public Object getSelf() {
+                return this;
+            }
+        }));
+    }
+
+    /**
+     * Calls the command and waits for the response
+     */
+    private static Object call(Clubby clubby, ClubbyOptions opts) throws Exception {
+        CompletableFuture<Object> f = clubby.callAsync(
+                "//dev", "Get", Collections.singletonMap("k", 1), Object.class, opts
+                );
+        return f.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void clientRevalidatesStaleResponse() throws Exception {
+        Clubby clubby = OfflineClubby.create();
+        try {
+            ClubbyOptions opts = OfflineClubby.options(clubby)
+                .cacheTtl(50)
+                .cacheStale(60000);
+
+            CompletableFuture<Object> f = clubby.callAsync(
+                    "//dev", "Get", Collections.singletonMap("k", 1), Object.class, opts
+                    );
+            OfflineClubby.respond(clubby, OfflineClubby.lastCmdId(clubby), "\"resp\":1");
+            assertEquals(1, f.get(5, TimeUnit.SECONDS));
+
+            // Fresh: nothing is sent
+            assertEquals(1, call(clubby, opts));
+            assertEquals(1, clubby.getSendQueueDepth());
+            assertEquals(0, clubby.getPendingCount());
+
+            // Stale: the response is served, and one refresh is sent
+            Thread.sleep(100);
+            assertEquals(1, call(clubby, opts));
+            assertEquals(1, call(clubby, opts));
+            assertEquals(2, clubby.getSendQueueDepth());
+            assertEquals(1, clubby.getPendingCount());
+
+            // Failed refresh keeps the stale response, and the next call
+            // sends another refresh
+            OfflineClubby.respond(
+                    clubby, OfflineClubby.lastCmdId(clubby), "\"status\":500"
+                    );
+            assertEquals(0, clubby.getPendingCount());
+            assertEquals(1, call(clubby, opts));
+            assertEquals(3, clubby.getSendQueueDepth());
+            assertEquals(1, clubby.getPendingCount());
+
+            // Successful refresh replaces the response
+            OfflineClubby.respond(clubby, OfflineClubby.lastCmdId(clubby), "\"resp\":2");
+            assertEquals(2, call(clubby, opts));
+            assertEquals(3, clubby.getSendQueueDepth());
+            assertEquals(0, clubby.getPendingCount());
+        } finally {
+            clubby.close();
+        }
+    }
+
+    @Test
+    public void clientDoesNotCacheErrors() throws Exception {
+        Clubby clubby = OfflineClubby.create();
+        try {
+            ClubbyOptions opts = OfflineClubby.options(clubby).cacheTtl(60000);
+
+            CompletableFuture<Object> f = clubby.callAsync(
+                    "//dev", "Get", Collections.singletonMap("k", 1), Object.class, opts
+                    );
+            OfflineClubby.respond(clubby, OfflineClubby.lastCmdId(clubby), "\"status\":500");
+            try {
+                f.get(5, TimeUnit.SECONDS);
+                throw new AssertionError("error expected");
+            } catch (ExecutionException e) {
+                // Expected
+            }
+
+            clubby.callAsync(
+                    "//dev", "Get", Collections.singletonMap("k", 1), Object.class, opts
+                    );
+            assertEquals(2, clubby.getSendQueueDepth());
+            assertEquals(0, clubby.getCacheHits());
+            assertEquals(2, clubby.getCacheMisses());
+        } finally {
+            clubby.close();
+        }
+    }
+
+}
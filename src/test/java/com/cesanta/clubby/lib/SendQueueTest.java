@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SendQueueTest {
+
+    /**
+     * Sink which records the frames it has sent; frame is identified by its
+     * cmdIds: {sender, seq}.
+     */
+    private static class Recorder implements SendQueue.Sink {
+        final List<int[]> sent = Collections.synchronizedList(new ArrayList<int[]>());
+        volatile boolean connected = true;
+
+        @Override
+        public boolean send(SendQueue.Frame frame) {
+            if (!connected) {
+                return false;
+            }
+            sent.add(frame.cmdIds);
+            return true;
+        }
+
+        @Override
+        public void drop(SendQueue.Frame frame, int status, String statusMsg) {
+            throw new AssertionError("nothing should be dropped");
+        }
+    }
+
+    private static SendQueue.Frame createFrame(int sender, int seq) {
+        return new SendQueue.Frame(null, new int[] { sender, seq });
+    }
+
+    /**
+     * Sends the frame the same way Clubby does
+     */
+    private static void send(SendQueue queue, Recorder sink, SendQueue.Frame frame) {
+        if (sink.connected && queue.sendNow(frame)) {
+            return;
+        }
+        queue.add(frame);
+        if (sink.connected) {
+            queue.drain();
+        }
+    }
+
+    @Test
+    public void sentRightAwayWhenNothingIsQueued() {
+        Recorder sink = new Recorder();
+        SendQueue queue = new SendQueue(16, SendQueuePolicy.FAIL_FAST, sink);
+        assertTrue(queue.sendNow(createFrame(0, 1)));
+        assertEquals(1, sink.sent.size());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void notSentRightAwayAfterQueuedFrames() {
+        Recorder sink = new Recorder();
+        SendQueue queue = new SendQueue(16, SendQueuePolicy.FAIL_FAST, sink);
+
+        sink.connected = false;
+        send(queue, sink, createFrame(0, 1));
+        sink.connected = true;
+
+        assertFalse(queue.sendNow(createFrame(0, 2)));
+        assertTrue(sink.sent.isEmpty());
+        assertEquals(1, queue.size());
+
+        send(queue, sink, createFrame(0, 2));
+        assertEquals(2, sink.sent.size());
+        assertEquals(1, sink.sent.get(0)[1]);
+        assertEquals(2, sink.sent.get(1)[1]);
+    }
+
+    @Test
+    public void notSentRightAwayDuringDrain() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        Recorder sink = new Recorder() {
+            @Override
+            public boolean send(SendQueue.Frame frame) {
+                if (frame.cmdIds[1] == 1) {
+                    sending.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return super.send(frame);
+            }
+        };
+        final SendQueue queue = new SendQueue(16, SendQueuePolicy.FAIL_FAST, sink);
+        queue.add(createFrame(0, 1));
+
+        // The queue is empty while its last frame is being sent
+        Thread drainer = new Thread() {
+            @Override
+            public void run() {
+                queue.drain();
+            }
+        };
+        drainer.start();
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.sendNow(createFrame(0, 2)));
+
+        // The frame queued meanwhile is sent by the drainer
+        send(queue, sink, createFrame(0, 2));
+        proceed.countDown();
+        drainer.join();
+
+        assertEquals(2, sink.sent.size());
+        assertEquals(1, sink.sent.get(0)[1]);
+        assertEquals(2, sink.sent.get(1)[1]);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void concurrentSendersKeepTheirOrder() throws Exception {
+        final int senders = 4;
+        final int frames = 5000;
+        final Recorder sink = new Recorder() {
+            @Override
+            public boolean send(SendQueue.Frame frame) {
+                // Give the other senders a chance to get in between
+                Thread.yield();
+                return super.send(frame);
+            }
+        };
+        final SendQueue queue = new SendQueue(frames, SendQueuePolicy.BLOCK, sink);
+
+        // Keep reconnecting, so that some frames are queued and drained
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread connector = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.await(1, TimeUnit.MILLISECONDS)) {
+                        sink.connected = false;
+                        Thread.sleep(1);
+                        sink.connected = true;
+                        queue.drain();
+                    }
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        connector.start();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < senders; i++) {
+            final int sender = i;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    for (int seq = 0; seq < frames; seq++) {
+                        send(queue, sink, createFrame(sender, seq));
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        done.countDown();
+        connector.join();
+
+        // Nothing is left in the queue while connected
+        assertTrue(sink.connected);
+        assertTrue(queue.isEmpty());
+        assertEquals(senders * frames, sink.sent.size());
+        int[] next = new int[senders];
+        for (int[] ids : sink.sent) {
+            assertEquals("order of sender " + ids[0], next[ids[0]], ids[1]);
+            next[ids[0]]++;
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.cesanta.clubby.lib.Clubby.JsonCmd;
+import com.cesanta.clubby.lib.Clubby.JsonFrame;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+public class SharedArgsTest {
+
+    private static Map<String, Object> createArgs() {
+        Map<String, Object> args = new LinkedHashMap<String, Object>();
+        args.put("str", "value \"quoted\"");
+        args.put("num", 42);
+        args.put("list", Arrays.asList(1.5, null, true));
+        args.put("nested", java.util.Collections.singletonMap("k", "v"));
+        return args;
+    }
+
+    private static JsonFrame createFrame(Object args) {
+        JsonFrame frame = new JsonFrame();
+        frame.src = "me";
+        frame.dst = "//dev";
+        frame.cmds = Arrays.asList(new JsonCmd("Cmd", 1, args));
+        return frame;
+    }
+
+    private static void assertSameEncoding(FrameCodec codec) throws JsonProcessingException {
+        Map<String, Object> args = createArgs();
+        SharedArgs shared = new SharedArgs(FrameCodec.createJson().getMapper(), args);
+
+        byte[] expected = codec.encode(createFrame(args));
+        // Twice, the second time with the JSON made already
+        for (int i = 0; i < 2; i++) {
+            byte[] actual = codec.encode(createFrame(shared));
+            assertTrue(
+                    "got " + new String(actual) + ", expected " + new String(expected),
+                    Arrays.equals(expected, actual)
+                    );
+        }
+    }
+
+    @Test
+    public void sameAsArgsInJson() throws JsonProcessingException {
+        assertSameEncoding(FrameCodec.createJson());
+    }
+
+    @Test
+    public void sameAsArgsInCbor() throws JsonProcessingException {
+        assertSameEncoding(new FrameCodec("cbor", new CBORFactory()));
+    }
+
+    @Test(expected = JsonProcessingException.class)
+    public void unserializableArgs() throws JsonProcessingException {
+        new SharedArgs(FrameCodec.createJson().getMapper(), new Object() {
+            @SuppressWarnings("unused")
+            public Object getSelf() {
+                throw new IllegalStateException("boom");
+            }
+        });
+    }
+
+    @Test
+    public void duplicateDestinationsAreCalledOnce() throws Exception {
+        Clubby clubby = new Clubby.Builder()
+            .id("me")
+            .psk("k")
+            .serverAddress("http://localhost:1")
+            .build();
+        try {
+            // Not connected, so each command fails right away
+            FanOutResult<Object> result = clubby.callMany(
+                    Arrays.asList("//a", "//b", "//a"),
+                    "Cmd",
+                    createArgs(),
+                    Object.class,
+                    null
+                    ).get();
+
+            assertEquals(Arrays.asList("//a", "//b"),
+                    Arrays.asList(result.getErrors().keySet().toArray()));
+            assertEquals(ClubbyStatus.NOT_CONNECTED,
+                    result.getErrors().get("//a").getStatus());
+            assertEquals(0, clubby.getPendingCount());
+        } finally {
+            clubby.close();
+        }
+    }
+
+}
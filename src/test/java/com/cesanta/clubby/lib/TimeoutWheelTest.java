@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2016 Cesanta Software Limited
+ * All rights reserved
+ */
+
+package com.cesanta.clubby.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TimeoutWheelTest {
+
+    /* Slack for the thread scheduling on a busy machine */
+    private static final long SLACK_MILLIS = 100;
+
+    /**
+     * Task which records when it was run.
+     */
+    private static final class Task implements Runnable {
+        final long scheduledAt = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long ranAfterMillis = -1;
+
+        @Override
+        public void run() {
+            ranAfterMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduledAt);
+            done.countDown();
+        }
+
+        boolean await(long millis) throws InterruptedException {
+            return done.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void assertRanOnTime(Task task, long delay, long tick)
+        throws InterruptedException
+    {
+        assertTrue("not run", task.await(delay + tick + SLACK_MILLIS * 10));
+        assertTrue("run early: " + task.ranAfterMillis, task.ranAfterMillis >= delay);
+        assertTrue(
+                "run late: " + task.ranAfterMillis,
+                task.ranAfterMillis <= delay + tick + SLACK_MILLIS
+                );
+    }
+
+    @Test
+    public void firesWithinOneTick() throws InterruptedException {
+        TimeoutWheel wheel = new TimeoutWheel(20, 8);
+        try {
+            Task task = new Task();
+            wheel.schedule(task, 50, TimeUnit.MILLISECONDS);
+            assertRanOnTime(task, 50, 20);
+
+            Task now = new Task();
+            wheel.schedule(now, 0, TimeUnit.MILLISECONDS);
+            assertRanOnTime(now, 0, 20);
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void delayLongerThanOneTurn() throws InterruptedException {
+        // One turn of the wheel is 4 ticks, i.e. 40 ms
+        TimeoutWheel wheel = new TimeoutWheel(10, 4);
+        try {
+            Task far = new Task();
+            Task near = new Task();
+            Task sameBucket = new Task();
+            wheel.schedule(far, 135, TimeUnit.MILLISECONDS);
+            wheel.schedule(near, 15, TimeUnit.MILLISECONDS);
+            wheel.schedule(sameBucket, 55, TimeUnit.MILLISECONDS);
+
+            assertRanOnTime(near, 15, 10);
+            assertRanOnTime(sameBucket, 55, 10);
+            assertRanOnTime(far, 135, 10);
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void cancelBeforeExpiry() throws InterruptedException {
+        TimeoutWheel wheel = new TimeoutWheel(10, 8);
+        try {
+            Task cancelled = new Task();
+            Task other = new Task();
+            TimeoutWheel.Timeout timeout =
+                wheel.schedule(cancelled, 50, TimeUnit.MILLISECONDS);
+            wheel.schedule(other, 50, TimeUnit.MILLISECONDS);
+
+            // Let the reaper move it onto the wheel first
+            Thread.sleep(20);
+            assertTrue(timeout.cancel());
+            assertTrue(timeout.isCancelled());
+            assertFalse(timeout.cancel());
+
+            assertRanOnTime(other, 50, 10);
+            assertFalse(cancelled.await(50));
+
+            // Too late to cancel the expired one
+            Task expired = new Task();
+            TimeoutWheel.Timeout expiredTimeout =
+                wheel.schedule(expired, 0, TimeUnit.MILLISECONDS);
+            assertTrue(expired.await(SLACK_MILLIS * 10));
+            assertFalse(expiredTimeout.cancel());
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void schedulesAgainAfterIdle() throws InterruptedException {
+        TimeoutWheel wheel = new TimeoutWheel(10, 8);
+        try {
+            wheel.setKeepAlive(true);
+            Task first = new Task();
+            wheel.schedule(first, 10, TimeUnit.MILLISECONDS);
+            assertRanOnTime(first, 10, 10);
+
+            // The wheel is empty, so the reaper parks
+            Thread.sleep(100);
+            Task parked = new Task();
+            wheel.schedule(parked, 30, TimeUnit.MILLISECONDS);
+            assertRanOnTime(parked, 30, 10);
+
+            // Without keep-alive, the reaper exits and is started again
+            wheel.setKeepAlive(false);
+            Thread.sleep(100);
+            Task restarted = new Task();
+            wheel.schedule(restarted, 30, TimeUnit.MILLISECONDS);
+            assertRanOnTime(restarted, 30, 10);
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void failingTaskDoesNotStopReaper() throws InterruptedException {
+        TimeoutWheel wheel = new TimeoutWheel(10, 8);
+        try {
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    throw new RuntimeException("test");
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+
+            Task task = new Task();
+            wheel.schedule(task, 20, TimeUnit.MILLISECONDS);
+            assertRanOnTime(task, 20, 10);
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void manyTimeoutsAllFire() throws InterruptedException {
+        TimeoutWheel wheel = new TimeoutWheel(5, 8);
+        try {
+            int cnt = 10000;
+            final CountDownLatch done = new CountDownLatch(cnt);
+            final AtomicInteger early = new AtomicInteger();
+            for (int i = 0; i < cnt; i++) {
+                final long delay = i % 100;
+                final long scheduledAt = System.nanoTime();
+                wheel.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        long ranAfter = TimeUnit.NANOSECONDS.toMillis(
+                                System.nanoTime() - scheduledAt
+                                );
+                        if (ranAfter < delay) {
+                            early.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(0, early.get());
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void stoppedWheelRunsNothing() throws InterruptedException {
+        TimeoutWheel wheel = new TimeoutWheel(10, 8);
+        Task pending = new Task();
+        wheel.schedule(pending, 30, TimeUnit.MILLISECONDS);
+        wheel.stop();
+
+        Task late = new Task();
+        wheel.schedule(late, 0, TimeUnit.MILLISECONDS);
+
+        assertFalse(pending.await(100));
+        assertFalse(late.await(0));
+    }
+
+}